@@ -8,12 +8,19 @@ import net.spartanb312.grunt.event.events.TransformerEvent
 import net.spartanb312.grunt.gui.GuiFrame
 import net.spartanb312.grunt.plugin.PluginManager
 import net.spartanb312.grunt.plugin.PluginManager.hasPlugins
+import net.spartanb312.grunt.process.ClassPipeline
+import net.spartanb312.grunt.process.ClassPipeline.processClasses
+import net.spartanb312.grunt.process.ClassProcessor
+import net.spartanb312.grunt.process.ProcessMetrics
+import net.spartanb312.grunt.process.Transformer
+import net.spartanb312.grunt.process.TransformerScheduler
 import net.spartanb312.grunt.process.Transformers
 import net.spartanb312.grunt.process.resource.ResourceCache
 import net.spartanb312.grunt.process.transformers.PostProcessTransformer
 import net.spartanb312.grunt.utils.logging.Logger
 import java.awt.GraphicsEnvironment
 import java.io.File
+import java.util.*
 import kotlin.system.measureTimeMillis
 
 /**
@@ -108,28 +115,25 @@ fun runProcess() {
     ProcessEvent.Before.post()
     val time = measureTimeMillis {
         ResourceCache(Configs.Settings.input, Configs.Settings.libraries).apply {
-            readJar()
-            val timeUsage = mutableMapOf<String, Long>()
+            val metrics = if (Configs.Settings.exportMetrics) ProcessMetrics(this) else null
+            metrics.phase("Read") { readJar() }
+            val timeUsage = Collections.synchronizedMap(mutableMapOf<String, Long>())
             val obfTime = measureTimeMillis {
                 Logger.info("Processing...")
-                Transformers.sortedBy { it.order }.forEach {
-                    if (it.enabled) {
-                        val preEvent = TransformerEvent.Before(it, this)
-                        preEvent.post()
-                        if (!preEvent.cancelled) {
-                            val actualTransformer = preEvent.transformer
-                            val startTime = System.currentTimeMillis()
-                            with(actualTransformer) { transform() }
-                            timeUsage[actualTransformer.name] = System.currentTimeMillis() - startTime
-                            val postEvent = TransformerEvent.After(actualTransformer, this)
-                            postEvent.post()
-                        }
-                    }
+                val stages = ClassPipeline.stages(Transformers.sortedBy { it.order }.filter { it.enabled })
+                // Metrics scan the program between transformers
+                if (Configs.Settings.concurrentTransformers && metrics != null) {
+                    Logger.warn("Exporting metrics, running transformers in order")
                 }
-                with(PostProcessTransformer) {
-                    FinalizeEvent.Before(this@apply).post()
-                    finalize()
-                    FinalizeEvent.After(this@apply).post()
+                if (Configs.Settings.concurrentTransformers && metrics == null) {
+                    TransformerScheduler.run(stages) { runStage(it, timeUsage, null) }
+                } else stages.forEach { runStage(it, timeUsage, metrics) }
+                metrics.phase("Finalize") {
+                    with(PostProcessTransformer) {
+                        FinalizeEvent.Before(this@apply).post()
+                        finalize()
+                        FinalizeEvent.After(this@apply).post()
+                    }
                 }
             }
             Logger.info("Took $obfTime ms to process!")
@@ -137,8 +141,46 @@ fun runProcess() {
                 Logger.info("   $name $duration ms")
             }
             Logger.info("Dumping to ${Configs.Settings.output}")
-        }.dumpJar(Configs.Settings.output)
+            metrics.phase("Dump", scanProgram = false) { dumpJar(Configs.Settings.output) }
+            metrics?.apply {
+                annotate("Dump", "classBytesWritten", writtenClassBytes.get())
+                save(File("${mappingsDirectory}metrics.json"))
+            }
+        }
     }
     ProcessEvent.After.post()
     Logger.info("Finished in $time ms!")
-}
\ No newline at end of file
+}
+
+private fun ResourceCache.runStage(
+    stage: List<Transformer>,
+    timeUsage: MutableMap<String, Long>,
+    metrics: ProcessMetrics?
+) {
+    // Only formed without transformer listeners, see ClassPipeline.stages
+    if (stage.size > 1) {
+        val name = stage.joinToString("+") { it.name }
+        Logger.info("Fused $name")
+        val startTime = System.currentTimeMillis()
+        metrics.phase(name) { processClasses(stage.map { it as ClassProcessor }) }
+        timeUsage[name] = System.currentTimeMillis() - startTime
+        references.invalidate()
+    } else stage.forEach { transformer ->
+        val preEvent = TransformerEvent.Before(transformer, this)
+        preEvent.post()
+        if (!preEvent.cancelled) {
+            val actualTransformer = preEvent.transformer
+            val startTime = System.currentTimeMillis()
+            metrics.phase(actualTransformer.name) { with(actualTransformer) { transform() } }
+            timeUsage[actualTransformer.name] = System.currentTimeMillis() - startTime
+            // Transformers rewrite instructions in place, scan references again where they are used next
+            references.invalidate()
+            val postEvent = TransformerEvent.After(actualTransformer, this)
+            postEvent.post()
+        }
+    }
+}
+
+private fun ProcessMetrics?.phase(name: String, scanProgram: Boolean = true, block: () -> Unit) {
+    if (this == null) block() else measure(name, scanProgram, block)
+}
@@ -5,6 +5,8 @@ import net.spartanb312.grunt.config.Configs.Settings.exclusions
 import net.spartanb312.grunt.config.Configs.Settings.mixinPackages
 import net.spartanb312.grunt.event.events.ConfigEvent
 import net.spartanb312.grunt.process.Transformers
+import net.spartanb312.grunt.utils.endsWithAny
+import net.spartanb312.grunt.utils.inList
 import org.objectweb.asm.tree.ClassNode
 import java.io.*
 import java.util.zip.Deflater
@@ -18,12 +20,22 @@ object Configs {
         var input by setting("Input", "input.jar")
         var output by setting("Output", "output.jar")
         var libraries by setting("Libraries", listOf())
+        var libraryCache by setting("LibraryCacheDirectory", "")
+        var resourceSpillThreshold by setting("ResourceSpillThreshold", 1024 * 1024)
         var exclusions by setting("Exclusions", listOf())
         var mixinPackages by setting("MixinPackage", listOf("net/spartanb312/client/mixins/"))
+        var globPatterns by setting("GlobPatterns", false)
         var generateRemap by setting("DumpMappings", true)
         var parallel by setting("Multithreading", false)
+        var fusePasses by setting("FuseClassPasses", false)
+        var concurrentTransformers by setting("ConcurrentTransformers", false)
         var timeUsage by setting("PrintTimeUsage", true)
+        var exportMetrics by setting("ExportMetrics", false)
         var forceUseComputeMax by setting("ForceUseComputeMax", false)
+        var preserveFrames by setting("PreserveFrames", true)
+        var methodSizeBudget by setting("MethodSizeBudget", 8000)
+        var hotnessProfile by setting("HotnessProfile", "")
+        var hotMethodCount by setting("HotMethodCount", 100)
         var missingCheck by setting("LibsMissingCheck", true)
         var customDictionary by setting("CustomDictionaryFile", File("customDictionary.txt"))
         var dictionaryStartIndex by setting("DictionaryStartIndex", 0)
@@ -107,12 +119,11 @@ object Configs {
 
     inline val String.isExcluded get() = isMixinClass || isGlobalExcluded
     inline val ClassNode.isExcluded get() = isMixinClass || isGlobalExcluded
-    inline val String.isMixinClass get() = mixinPackages.any { this.startsWith(it) }
-    inline val ClassNode.isMixinClass get() = mixinPackages.any { name.startsWith(it) }
-    inline val String.isGlobalExcluded get() = exclusions.any { this.startsWith(it) }
-    inline val ClassNode.isGlobalExcluded get() = exclusions.any { name.startsWith(it) }
+    inline val String.isMixinClass get() = inList(mixinPackages)
+    inline val ClassNode.isMixinClass get() = name.inList(mixinPackages)
+    inline val String.isGlobalExcluded get() = inList(exclusions)
+    inline val ClassNode.isGlobalExcluded get() = name.inList(exclusions)
     inline val String.shouldRemove
-        get() = Settings.fileRemovePrefix.any { startsWith(it) }
-                || Settings.fileRemoveSuffix.any { endsWith(it) }
+        get() = inList(Settings.fileRemovePrefix) || endsWithAny(Settings.fileRemoveSuffix)
 
 }
\ No newline at end of file
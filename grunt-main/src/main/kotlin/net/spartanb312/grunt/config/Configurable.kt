@@ -2,6 +2,7 @@ package net.spartanb312.grunt.config
 
 import com.google.gson.JsonArray
 import com.google.gson.JsonObject
+import net.spartanb312.grunt.utils.PatternList
 import java.io.File
 import kotlin.properties.ReadWriteProperty
 import kotlin.reflect.KProperty
@@ -43,14 +44,16 @@ abstract class AbstractValue<T>(val name: String, val defaultValue: T) : ReadWri
     private val valueListeners = ArrayList<(prev: T, input: T) -> Unit>()
     var value = defaultValue
         set(value) {
-            if (value != field) {
+            val new = adapt(value)
+            if (new != field) {
                 val prev = field
-                val new = value
                 field = new
                 valueListeners.forEach { it(prev, field) }
             }
         }
 
+    protected open fun adapt(value: T): T = value
+
     abstract fun saveValue(jsonObject: JsonObject)
     abstract fun getValue(jsonObject: JsonObject)
 
@@ -105,7 +108,10 @@ class BooleanValue(name: String, value: Boolean) : AbstractValue<Boolean>(name,
     }
 }
 
-class ListValue(name: String, value: List<String>) : AbstractValue<List<String>>(name, value) {
+class ListValue(name: String, value: List<String>) : AbstractValue<List<String>>(name, PatternList(value)) {
+    // Keep the compiled matcher with the list
+    override fun adapt(value: List<String>): List<String> = value as? PatternList ?: PatternList(value)
+
     override fun saveValue(jsonObject: JsonObject) = jsonObject.add(name, JsonArray().apply {
         value.forEach { add(it) }
     })
@@ -11,6 +11,8 @@ open class EventBus : EventPosting {
     private val listeners = CopyOnWriteArrayList<Listener>()
     private val parallelListeners = CopyOnWriteArrayList<ParallelListener>()
 
+    val hasListeners get() = listeners.isNotEmpty() || parallelListeners.isNotEmpty()
+
     override fun post(event: Any) {
         for (listener in listeners) {
             listener.function.invoke(event)
@@ -4,9 +4,24 @@ import net.spartanb312.grunt.event.CancellableEvent
 import net.spartanb312.grunt.event.EventBus
 import net.spartanb312.grunt.event.EventPosting
 
-class WritingResourceEvent(
+/**
+ * Posted for every entry written, bytes of resources copied as is are only read once a listener asks for them
+ */
+class WritingResourceEvent private constructor(
     val name: String,
-    val byteArray: ByteArray
+    private val bytes: Lazy<ByteArray>
 ) : CancellableEvent(), EventPosting by Companion {
+
+    constructor(name: String, byteArray: ByteArray) : this(name, lazyOf(byteArray))
+
+    constructor(name: String, read: () -> ByteArray) : this(name, lazy(read))
+
+    val byteArray: ByteArray by bytes
+
+    /**
+     * A listener read the bytes and may have changed them in place
+     */
+    val isRead get() = bytes.isInitialized()
+
     companion object : EventBus()
 }
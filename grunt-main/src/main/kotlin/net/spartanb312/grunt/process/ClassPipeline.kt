@@ -0,0 +1,71 @@
+package net.spartanb312.grunt.process
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import net.spartanb312.grunt.config.Configs
+import net.spartanb312.grunt.event.events.TransformerEvent
+import net.spartanb312.grunt.process.resource.ResourceCache
+import net.spartanb312.grunt.utils.Counter
+import net.spartanb312.grunt.utils.logging.Logger
+
+/**
+ * Runs ClassProcessor passes as one walk over the classes
+ * Every class goes through the whole chain while it is hot, classes are spread over workers.
+ * A step only changes its own class, so a class sees the same passes in the same order as running them
+ * one after another. What a chain can't keep is left out of it:
+ * a processor walking more than once runs alone, one collecting from other classes in prepare starts a new chain,
+ * and classes added during a walk are not visited by it, so a chain ends after a processor adding classes.
+ */
+object ClassPipeline {
+
+    /**
+     * Groups transformers sorted by order into stages, runs of adjacent processors share a stage
+     * Transformer listeners expect each transformer to run on its own between its events, nothing is fused for them.
+     */
+    fun stages(transformers: List<Transformer>): List<List<Transformer>> {
+        val stages = mutableListOf<MutableList<Transformer>>()
+        val fuse = Configs.Settings.fusePasses
+                && !TransformerEvent.Before.hasListeners && !TransformerEvent.After.hasListeners
+        var open = false
+        transformers.forEach {
+            if (open && it is ClassProcessor && it.passes == 1 && !it.preparesFromProgram) stages.last().add(it)
+            else stages.add(mutableListOf(it))
+            open = fuse && it is ClassProcessor && it.passes == 1 && !it.addsClasses
+        }
+        return stages
+    }
+
+    fun ResourceCache.processClasses(vararg processors: ClassProcessor) = processClasses(processors.asList())
+
+    fun ResourceCache.processClasses(processors: List<ClassProcessor>) {
+        processors.forEach { with(it) { prepare() } }
+        val counters = processors.map { Counter() }
+        val passes = processors.maxOf { it.passes }
+        repeat(passes) { pass ->
+            if (passes > 1) Logger.info("    Pass ${pass + 1} of $passes")
+            walk(processors, counters, pass)
+        }
+        processors.forEachIndexed { index, processor -> processor.report(counters[index].get()) }
+    }
+
+    private fun ResourceCache.walk(processors: List<ClassProcessor>, counters: List<Counter>, pass: Int) {
+        runBlocking {
+            nonExcluded.forEach { classNode ->
+                fun job() {
+                    processors.forEachIndexed { index, processor ->
+                        with(processor) {
+                            if (pass < processor.passes && accepts(classNode)) {
+                                counters[index].transformClass(classNode)
+                                // Later processors of the chain check references of the rewritten class
+                                if (index < processors.lastIndex) references.markDirty(classNode)
+                            }
+                        }
+                    }
+                }
+                if (Configs.Settings.parallel) launch(Dispatchers.Default) { job() } else job()
+            }
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package net.spartanb312.grunt.process
+
+import net.spartanb312.grunt.config.Configs
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Estimated code length of methods against a shared byte budget
+ * HotSpot never compiles methods over HugeMethodLimit (8000 bytes), methods under the budget are kept under it.
+ * Methods already over it are not compiled anyway and may grow up to the class file limit.
+ * Which of the two limits applies is decided once per method as read and kept for every later pass,
+ * so a method pushed over the budget by a transformer not asking for allowances doesn't lose its limit.
+ * The estimate is taken from the current code, so it covers what every earlier pass added.
+ * Sizes are what ClassWriter emits with full switch padding and ldc_w, jumps are assumed short.
+ */
+object CodeBudget {
+
+    const val MAX_CODE_LENGTH = 65535
+
+    private val limits = ConcurrentHashMap<MethodNode, Int>() // MethodNode has identity equality
+
+    fun record(classes: Collection<ClassNode>) {
+        limits.clear()
+        classes.forEach { classNode -> classNode.methods.forEach { limits[it] = limitOf(sizeOf(it.instructions)) } }
+    }
+
+    /**
+     * Called with a remapped copy, methods of the copy keep the limits of the originals
+     */
+    fun remapped(original: ClassNode, copy: ClassNode) {
+        if (original.methods.size != copy.methods.size) return
+        for (index in original.methods.indices) {
+            limits.remove(original.methods[index])?.let { limits[copy.methods[index]] = it }
+        }
+    }
+
+    /**
+     * Methods generated after reading get their limit when first asked for
+     */
+    fun allowance(methodNode: MethodNode): Allowance {
+        val size = sizeOf(methodNode.instructions)
+        return Allowance(size, limits.getOrPut(methodNode) { limitOf(size) })
+    }
+
+    private fun limitOf(size: Int) =
+        Configs.Settings.methodSizeBudget.let { if (it <= 0 || size > it) MAX_CODE_LENGTH else it }
+
+    /**
+     * Bytes a method may still grow by, taken by one transformer working on the method
+     */
+    class Allowance(size: Int, val limit: Int) {
+
+        var size = size
+            private set
+        val remaining get() = limit - size
+
+        fun take(bytes: Int): Boolean {
+            if (size + bytes > limit) return false
+            size += bytes
+            return true
+        }
+
+        fun replace(insn: AbstractInsnNode, replacement: InsnList) = take(sizeOf(replacement) - sizeOf(insn))
+
+        fun replace(insn: AbstractInsnNode, replacement: AbstractInsnNode) = take(sizeOf(replacement) - sizeOf(insn))
+
+    }
+
+    fun sizeOf(instructions: InsnList): Int {
+        var size = 0
+        instructions.forEach { size += sizeOf(it) }
+        return size
+    }
+
+    fun sizeOf(insn: AbstractInsnNode): Int = when (insn) {
+        is InsnNode -> if (insn.opcode in 0..0xFF) 1 else 0 // Dummy
+        is IntInsnNode -> if (insn.opcode == Opcodes.SIPUSH) 3 else 2
+        is VarInsnNode -> when {
+            insn.`var` > 0xFF -> 4
+            insn.`var` < 4 && insn.opcode != Opcodes.RET -> 1
+            else -> 2
+        }
+
+        is IincInsnNode -> if (insn.`var` > 0xFF || insn.incr !in Byte.MIN_VALUE..Byte.MAX_VALUE) 6 else 3
+        is TypeInsnNode, is FieldInsnNode, is JumpInsnNode, is LdcInsnNode -> 3
+        is MethodInsnNode -> if (insn.opcode == Opcodes.INVOKEINTERFACE) 5 else 3
+        is InvokeDynamicInsnNode -> 5
+        is MultiANewArrayInsnNode -> 4
+        is TableSwitchInsnNode -> 16 + 4 * insn.labels.size
+        is LookupSwitchInsnNode -> 12 + 8 * insn.labels.size
+        else -> 0 // Labels, line numbers and frames
+    }
+
+}
@@ -0,0 +1,138 @@
+package net.spartanb312.grunt.process
+
+import com.google.gson.JsonArray
+import com.google.gson.JsonObject
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import net.spartanb312.grunt.config.Configs
+import net.spartanb312.grunt.config.Configs.saveToFile
+import net.spartanb312.grunt.process.resource.ResourceCache
+import net.spartanb312.grunt.utils.logging.Logger
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.InsnList
+import org.objectweb.asm.tree.MethodNode
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryType
+import java.util.*
+
+/**
+ * Per phase metrics of a run, saved as json next to the mappings
+ * CPU time is the whole process including GC, allocation is summed over live java threads.
+ * Peak heap adds up the peaks of each heap pool, so it is an upper bound.
+ * A method is touched when it is new or its instruction list was replaced or resized.
+ * Class sizes are measured by writing touched classes without frames, the output jar is larger.
+ * Phases must not overlap, the program is scanned between them.
+ */
+class ProcessMetrics(private val resourceCache: ResourceCache) {
+
+    private class Seen(val instructions: InsnList, val size: Int)
+
+    private val threads = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+    private val os = ManagementFactory.getOperatingSystemMXBean() as? com.sun.management.OperatingSystemMXBean
+    private val heapPools = ManagementFactory.getMemoryPoolMXBeans().filter { it.type == MemoryType.HEAP }
+
+    private var methods = IdentityHashMap<MethodNode, Seen>()
+    private var classSizes = IdentityHashMap<ClassNode, Int>()
+    private var instructions = 0L
+    private var classBytes = 0L
+    private val phases = JsonArray()
+
+    init {
+        if (threads != null && threads.isThreadAllocatedMemorySupported) threads.isThreadAllocatedMemoryEnabled = true
+    }
+
+    fun <T> measure(name: String, scanProgram: Boolean = true, block: () -> T): T {
+        heapPools.forEach { it.resetPeakUsage() }
+        val cpuBefore = os?.processCpuTime ?: -1L
+        val allocatedBefore = allocatedBytes()
+        val startTime = System.currentTimeMillis()
+
+        val result = block()
+
+        val phase = JsonObject()
+        phase.addProperty("name", name)
+        phase.addProperty("wallMillis", System.currentTimeMillis() - startTime)
+        if (cpuBefore >= 0) phase.addProperty("cpuMillis", (os!!.processCpuTime - cpuBefore) / 1_000_000)
+        val allocatedAfter = allocatedBytes()
+        phase.addProperty("allocatedBytes", allocatedAfter.entries.sumOf { (id, bytes) ->
+            bytes - (allocatedBefore[id] ?: 0L)
+        })
+        phase.addProperty("peakHeapBytes", heapPools.sumOf { it.peakUsage?.used ?: 0L })
+        if (scanProgram) scan(phase)
+        phases.add(phase)
+        return result
+    }
+
+    fun annotate(name: String, key: String, value: Number) {
+        phases.lastOrNull { it.asJsonObject["name"].asString == name }?.asJsonObject?.addProperty(key, value)
+    }
+
+    fun save(file: File) {
+        Logger.info("Writing metrics to ${file.path}")
+        JsonObject().apply {
+            addProperty("input", Configs.Settings.input)
+            add("phases", phases)
+        }.saveToFile(file)
+    }
+
+    private fun allocatedBytes(): Map<Long, Long> {
+        if (threads == null || !threads.isThreadAllocatedMemoryEnabled) return emptyMap()
+        val ids = threads.allThreadIds
+        val bytes = threads.getThreadAllocatedBytes(ids)
+        // Threads that died in between are missing, their allocation is lost
+        return ids.indices.filter { bytes[it] >= 0 }.associate { ids[it] to bytes[it] }
+    }
+
+    private fun scan(phase: JsonObject) {
+        val classes = resourceCache.classes.values.toList()
+        val newMethods = IdentityHashMap<MethodNode, Seen>()
+        val touched = ArrayList<ClassNode>()
+        var touchedMethods = 0
+        var newInstructions = 0L
+        classes.forEach { classNode ->
+            var classTouched = classNode !in classSizes
+            classNode.methods.forEach { methodNode ->
+                val seen = methods[methodNode]
+                val size = methodNode.instructions.size()
+                if (seen == null || seen.instructions !== methodNode.instructions || seen.size != size) {
+                    touchedMethods++
+                    classTouched = true
+                }
+                newMethods[methodNode] = Seen(methodNode.instructions, size)
+                newInstructions += size
+            }
+            if (classTouched) touched.add(classNode)
+        }
+
+        val sizes = IntArray(touched.size)
+        fun measureSize(index: Int) {
+            sizes[index] = runCatching { ClassWriter(0).apply { touched[index].accept(this) }.toByteArray().size }
+                .getOrDefault(0)
+        }
+        if (Configs.Settings.parallel) runBlocking {
+            touched.indices.forEach { launch(Dispatchers.Default) { measureSize(it) } }
+        } else touched.indices.forEach { measureSize(it) }
+
+        val newClassSizes = IdentityHashMap<ClassNode, Int>(classes.size)
+        classes.forEach { newClassSizes[it] = classSizes[it] ?: 0 }
+        touched.forEachIndexed { index, classNode -> newClassSizes[classNode] = sizes[index] }
+        val newClassBytes = newClassSizes.values.sumOf { it.toLong() }
+
+        phase.addProperty("classesTouched", touched.size)
+        phase.addProperty("methodsTouched", touchedMethods)
+        phase.addProperty("instructionsBefore", instructions)
+        phase.addProperty("instructionsAfter", newInstructions)
+        phase.addProperty("classBytesBefore", classBytes)
+        phase.addProperty("classBytesAfter", newClassBytes)
+        phase.addProperty("classBytesGrowth", newClassBytes - classBytes)
+
+        methods = newMethods
+        classSizes = newClassSizes
+        instructions = newInstructions
+        classBytes = newClassBytes
+    }
+
+}
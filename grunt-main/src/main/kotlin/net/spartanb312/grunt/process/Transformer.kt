@@ -6,8 +6,10 @@ import net.spartanb312.grunt.event.IListenerOwner
 import net.spartanb312.grunt.event.Listener
 import net.spartanb312.grunt.event.ParallelListener
 import net.spartanb312.grunt.process.resource.ResourceCache
+import net.spartanb312.grunt.utils.Counter
 import org.objectweb.asm.tree.ClassNode
 import org.objectweb.asm.tree.MethodNode
+import java.util.*
 
 abstract class Transformer(
     name: String,
@@ -21,6 +23,26 @@ abstract class Transformer(
     override val listeners = ArrayList<Listener>()
     override val parallelListeners = ArrayList<ParallelListener>()
     abstract fun ResourceCache.transform()
+
+    /**
+     * What the pass reads and writes, see TransformerScheduler
+     * Undeclared transformers read and write everything and never run alongside others.
+     */
+    open val reads: Set<State> get() = State.ALL
+    open val writes: Set<State> get() = State.ALL
+
+    enum class State {
+        CLASS_SET, // Which classes exist, their names and the class mappings
+        CLASS_ADDITIONS, // New classes, touches the class set
+        MEMBERS, // Member lists, names, descriptors, access, signatures, annotations and class attributes
+        METHOD_BODIES, // Instructions, try catch blocks, local variables and line numbers
+        RESOURCES; // Non class entries
+
+        companion object {
+            val ALL: Set<State> = EnumSet.allOf(State::class.java)
+        }
+    }
+
     enum class Category {
         Encryption,
         Controlflow,
@@ -39,4 +61,23 @@ infix fun Transformer.order(order: Int): Transformer {
 
 interface MethodProcessor {
     fun transformMethod(owner: ClassNode, method: MethodNode)
-}
\ No newline at end of file
+}
+
+/**
+ * A transformer whose pass is an independent step per class, see ClassPipeline
+ * A step may only change the given class. Adding new classes is allowed when addsClasses says so.
+ */
+interface ClassProcessor : MethodProcessor {
+    val addsClasses: Boolean get() = false
+
+    // Walks over all classes the pass takes, the next walk starts once every class went through the last one
+    val passes: Int get() = 1
+
+    // Whether prepare collects from other classes, which then have to be done with the earlier passes
+    val preparesFromProgram: Boolean get() = false
+
+    fun ResourceCache.prepare() {}
+    fun ResourceCache.accepts(classNode: ClassNode): Boolean
+    fun Counter.transformClass(classNode: ClassNode)
+    fun report(count: Int)
+}
@@ -0,0 +1,48 @@
+package net.spartanb312.grunt.process
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import net.spartanb312.grunt.event.events.TransformerEvent
+import net.spartanb312.grunt.process.Transformer.State
+import net.spartanb312.grunt.utils.logging.Logger
+
+/**
+ * Runs stages concurrently where their declared reads and writes allow it
+ * A stage waits for every earlier stage it conflicts with, so the result matches running them in order.
+ * Two stages conflict when one writes what the other reads or writes.
+ */
+object TransformerScheduler {
+
+    fun run(stages: List<List<Transformer>>, runStage: (List<Transformer>) -> Unit) {
+        // Listeners may swap in transformers declaring something else
+        if (TransformerEvent.Before.hasListeners || TransformerEvent.After.hasListeners) {
+            Logger.warn("Transformer listeners present, running transformers in order")
+            stages.forEach(runStage)
+            return
+        }
+        val reads = stages.map { stage -> stage.flatMapTo(HashSet()) { it.reads }.expand() }
+        val writes = stages.map { stage -> stage.flatMapTo(HashSet()) { it.writes }.expand() }
+        runBlocking {
+            val jobs = ArrayList<Job>(stages.size)
+            stages.forEachIndexed { index, stage ->
+                val dependencies = (0 until index).filter { earlier ->
+                    writes[earlier].any { it in reads[index] || it in writes[index] }
+                            || reads[earlier].any { it in writes[index] }
+                }.map { jobs[it] }
+                // Stages block on their own workers
+                jobs.add(launch(Dispatchers.IO) {
+                    dependencies.joinAll()
+                    runStage(stage)
+                })
+            }
+        }
+    }
+
+    private fun Set<State>.expand(): Set<State> {
+        return if (State.CLASS_ADDITIONS in this) this + State.CLASS_SET else this
+    }
+
+}
@@ -1,39 +1,92 @@
 package net.spartanb312.grunt.process.hierarchy
 
+import net.spartanb312.grunt.config.Configs
 import net.spartanb312.grunt.process.resource.ResourceCache
+import net.spartanb312.grunt.utils.extensions.isInterface
 import net.spartanb312.grunt.utils.logging.Logger
 import org.objectweb.asm.tree.ClassNode
+import java.util.concurrent.ConcurrentHashMap
 
 class Hierarchy(private val resourceCache: ResourceCache) {
 
-    private val classInfos = mutableMapOf<String, ClassInfo>()
+    // Lock free lookups, an info is only put here once it is fully linked
+    private val classInfos = ConcurrentHashMap<String, ClassInfo>()
     private val missingDependencies = mutableMapOf<ClassInfo, List<ClassInfo>>() // Missing, Affected
+    private var prepared: Map<String, ClassInfo> = emptyMap()
+    private var subtypes: SubtypeIndex? = null
+    private val commonSuperClasses = ConcurrentHashMap<String, ConcurrentHashMap<String, String>>()
 
     val size get() = classInfos.size
 
-    class ClassInfo(val name: String, val classNode: ClassNode) {
+    // Bumped on every structural change, lets cached answers tell whether they are outdated
+    @Volatile
+    var version = 0
+        private set
+    val infos: Collection<ClassInfo> get() = classInfos.values
+    internal val subtypeIndex get() = subtypes
+
+    class ClassInfo(name: String, classNode: ClassNode) {
+        // Updated in place when classes are remapped
+        var name = name
+            internal set
+        var classNode = classNode
+            internal set
         val superName: String? get() = classNode.superName
         val interfaces: MutableList<String>? get() = classNode.interfaces
-        val parentNames = mutableListOf<String>().apply {
+        var parentNames: List<String> = mutableListOf<String>().apply {
             superName?.let { add(it) }
             interfaces?.let { addAll(it) }
         }
+            internal set
         val parents = mutableSetOf<ClassInfo>()
-        val children = mutableSetOf<ClassInfo>()
+
+        // Built in place, replaced by a copy once the info is shared so readers never see it change
+        @Volatile
+        var children: MutableSet<ClassInfo> = mutableSetOf()
+            internal set
         var iterated = false
         val isBroken = classNode == dummyClassNode
         var missingDependencies = isBroken
 
+        /**
+         * Whether the direct parents are still the ones of the given node
+         */
+        fun isLinkedTo(node: ClassNode): Boolean {
+            val superName = node.superName
+            val interfaces = node.interfaces ?: emptyList<String>()
+            if (parentNames.size != (if (superName != null) 1 else 0) + interfaces.size) return false
+            var index = 0
+            if (superName != null && parentNames[index++] != superName) return false
+            interfaces.forEach { if (parentNames[index++] != it) return false }
+            return true
+        }
+
         companion object {
             val dummyClassNode = ClassNode()
         }
     }
 
     fun build(includeLibs: Boolean = false) {
-        // Build all class infos
-        if (includeLibs) resourceCache.allClasses.forEach { getClassInfo(it) }
-        else resourceCache.classes.forEach { getClassInfo(it.key) }
+        val parallel = Configs.Settings.parallel
+        val roots = if (includeLibs) resourceCache.allClasses.map { it.name } else resourceCache.classes.keys.toList()
 
+        // Build all class infos, nodes are resolved concurrently and linked in order
+        prepared = HierarchyGraph.resolve(resourceCache, roots, ClassInfo.dummyClassNode, parallel, ::ClassInfo)
+        roots.forEach { classInfos[it] ?: buildClassInfo(it) }
+        prepared = emptyMap()
+
+        // Iterate parents and children
+        val infos = classInfos.values.toList()
+        if (!HierarchyGraph.fill(infos, { it.parents }, { it.children }, parallel)) iterate()
+        subtypes = SubtypeIndex.build(infos, { it.name }, { it.superName }, { it.interfaces ?: emptyList() }) {
+            it.classNode.isInterface
+        }
+
+        buildMissingMap()
+    }
+
+    // Sequential fallback for cyclic hierarchies
+    private fun iterate() {
         // Iterate parents
         classInfos.values.forEach { classInfo ->
             fun iterateParents(current: ClassInfo): Set<ClassInfo> {
@@ -56,8 +109,6 @@ class Hierarchy(private val resourceCache: ResourceCache) {
                 parent.children.add(classInfo)
             }
         }
-
-        buildMissingMap()
     }
 
     fun isSubType(child: ClassInfo, father: ClassInfo): Boolean {
@@ -66,23 +117,56 @@ class Hierarchy(private val resourceCache: ResourceCache) {
 
     fun isSubType(child: String, father: String): Boolean {
         if (child == father) return true
+        subtypes?.isSubType(child, father)?.let { return it }
         val childInfo = classInfos[child] ?: return false
         val fatherInfo = classInfos[father] ?: return false
         return if (childInfo.parents.contains(fatherInfo)) true
         else fatherInfo.children.contains(childInfo)
     }
 
+    /**
+     * Common super class as ClassWriter computes it, without loading any class.
+     * Memoized per pair until the hierarchy changes, null if either class is missing.
+     */
+    fun getCommonSuperClass(type1: String, type2: String): String? {
+        commonSuperClasses[type1]?.get(type2)?.let { return it }
+        val result = subtypes?.getCommonSuperClass(type1, type2) ?: findCommonSuperClass(type1, type2) ?: return null
+        commonSuperClasses.getOrPut(type1) { ConcurrentHashMap() }[type2] = result
+        return result
+    }
+
+    // Slow path for classes out of the subtype index or below a missing class
+    private fun findCommonSuperClass(type1: String, type2: String): String? {
+        val info1 = getClassInfo(type1)
+        val info2 = getClassInfo(type2)
+        if (info1.isBroken || info2.isBroken) return null
+        if (isSubType(type2, type1)) return type1
+        if (isSubType(type1, type2)) return type2
+        if (info1.classNode.isInterface || info2.classNode.isInterface) return "java/lang/Object"
+        var current = info1.superName?.let { getClassInfo(it) }
+        while (current != null && !current.isBroken) {
+            if (isSubType(type2, current.name)) return current.name
+            current = current.superName?.let { getClassInfo(it) }
+        }
+        return "java/lang/Object"
+    }
+
     fun getClassInfo(classNode: ClassNode): ClassInfo = getClassInfo(classNode.name)
 
+    /**
+     * Classes unknown so far are linked with their full parents, so the hierarchy stays complete
+     * Linking holds the lock, lookups don't as infos are published only once linked.
+     */
     fun getClassInfo(name: String): ClassInfo {
-        return classInfos[name] ?: buildClassInfo(name)
+        return classInfos[name] ?: synchronized(this) { link(name) }
     }
 
+    fun getClassInfoOrNull(name: String): ClassInfo? = classInfos[name]
+
     private fun buildClassInfo(name: String, subClassInfo: ClassInfo? = null): ClassInfo {
         val info = classInfos[name]
         return if (info == null) {
-            val classNode = resourceCache.getClassNode(name)
-            val newInfo = ClassInfo(name, classNode ?: ClassInfo.dummyClassNode)
+            val newInfo = prepared[name] ?: ClassInfo(name, resourceCache.getClassNode(name) ?: ClassInfo.dummyClassNode)
             if (subClassInfo != null) newInfo.children.add(subClassInfo)
 
             // solve parents
@@ -97,9 +181,79 @@ class Hierarchy(private val resourceCache: ResourceCache) {
         }
     }
 
+    /**
+     * Link a new class or swap the node of an existing one.
+     * Returns false if classes below it would need their parents recomputed.
+     */
+    @Synchronized
+    fun addClass(classNode: ClassNode): Boolean {
+        commonSuperClasses.clear()
+        version++
+        val exist = classInfos[classNode.name]
+        if (exist != null) {
+            if (!exist.isBroken && exist.isLinkedTo(classNode)) {
+                exist.classNode = classNode
+                return true
+            }
+            if (!removeClass(exist.name)) return false
+        }
+        link(classNode.name, classNode)
+        return true
+    }
+
+    /**
+     * Returns false if the class still has children
+     */
+    @Synchronized
+    fun removeClass(name: String): Boolean {
+        val info = classInfos[name] ?: return true
+        if (info.children.isNotEmpty()) return false
+        commonSuperClasses.clear()
+        version++
+        classInfos.remove(name)
+        info.parents.forEach { parent -> parent.children = LinkedHashSet(parent.children).apply { remove(info) } }
+        missingDependencies.remove(info)
+        subtypes?.forget(name)
+        return true
+    }
+
+    /**
+     * Rename classes in place, the graph itself doesn't change
+     */
+    @Synchronized
+    fun remap(mappings: Map<String, String>) {
+        if (mappings.isEmpty()) return
+        commonSuperClasses.clear()
+        version++
+        val infos = classInfos.values.toList()
+        classInfos.clear()
+        infos.forEach { info ->
+            mappings[info.name]?.let { info.name = it }
+            if (info.parentNames.any { it in mappings }) info.parentNames = info.parentNames.map { mappings[it] ?: it }
+            classInfos[info.name] = info
+        }
+        subtypes = subtypes?.remap(mappings)
+    }
+
+    // Link a class and its missing ancestors, parents are ordered as build() does
+    private fun link(name: String, classNode: ClassNode? = null): ClassInfo {
+        classInfos[name]?.let { return it }
+        val info = ClassInfo(name, classNode ?: resourceCache.getClassNode(name) ?: ClassInfo.dummyClassNode)
+        val direct = info.parentNames.map { link(it) }
+        info.parents.addAll(direct)
+        direct.forEach { info.parents.addAll(it.parents) }
+        info.parents.forEach { parent -> parent.children = LinkedHashSet(parent.children).apply { add(info) } }
+        info.iterated = true
+        info.missingDependencies = info.parents.any { it.isBroken } || info.isBroken
+        classInfos[name] = info
+        return info
+    }
+
     fun buildMissingMap() {
         // Update missing dependencies states
-        classInfos.values.forEach { classInfo ->
+        val infos = classInfos.values.toList()
+        HierarchyGraph.forEach(infos.size, Configs.Settings.parallel) { index ->
+            val classInfo = infos[index]
             classInfo.missingDependencies = classInfo.parents.any { it.isBroken } || classInfo.isBroken
         }
 
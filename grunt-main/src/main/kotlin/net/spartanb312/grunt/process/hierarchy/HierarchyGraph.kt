@@ -0,0 +1,187 @@
+package net.spartanb312.grunt.process.hierarchy
+
+import it.unimi.dsi.fastutil.ints.IntArrayList
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import net.spartanb312.grunt.process.resource.ResourceCache
+import org.objectweb.asm.tree.ClassNode
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Parallel stages of hierarchy building
+ * Results are the same as the recursive walks, including set iteration order:
+ * parents of a class are its direct parents followed by each parent's own closure,
+ * children are the direct ones followed by the others in class info order.
+ */
+object HierarchyGraph {
+
+    private const val MIN_PARALLEL = 1024
+
+    /**
+     * Resolve the given classes and all their ancestors concurrently and create their infos.
+     * Missing classes are given the placeholder node.
+     */
+    fun <T : Any> resolve(
+        resourceCache: ResourceCache,
+        roots: Collection<String>,
+        missing: ClassNode,
+        parallel: Boolean,
+        create: (String, ClassNode) -> T
+    ): Map<String, T> {
+        val resolved = ConcurrentHashMap<String, T>(roots.size * 2)
+        var frontier: List<String> = roots.distinct()
+        while (frontier.isNotEmpty()) {
+            val names = frontier
+            val next = ConcurrentHashMap.newKeySet<String>()
+            forRange(names.size, parallel) { index ->
+                val name = names[index]
+                val classNode = resourceCache.getClassNode(name) ?: missing
+                if (resolved.putIfAbsent(name, create(name, classNode)) == null) {
+                    classNode.superName?.let { if (!resolved.containsKey(it)) next.add(it) }
+                    classNode.interfaces?.forEach { if (!resolved.containsKey(it)) next.add(it) }
+                }
+            }
+            frontier = next.filter { !resolved.containsKey(it) }
+        }
+        return resolved
+    }
+
+    /**
+     * Expand direct parents to all parents and fill children accordingly.
+     * Returns false without touching anything if the graph has a cycle.
+     */
+    fun <T : Any> fill(
+        infos: List<T>,
+        parents: (T) -> MutableSet<T>,
+        children: (T) -> MutableSet<T>,
+        parallel: Boolean
+    ): Boolean {
+        val size = infos.size
+        val indexes = Object2IntOpenHashMap<T>(size).apply { defaultReturnValue(-1) }
+        infos.forEachIndexed { index, info -> indexes.put(info, index) }
+        val direct = Array(size) { index -> parents(infos[index]).map { indexes.getInt(it) }.toIntArray() }
+        if (direct.any { it.contains(-1) }) return false
+        val closures = closures(direct, parallel) ?: return false
+        forRange(size, parallel) { index ->
+            val set = parents(infos[index])
+            closures[index].forEach { set.add(infos[it]) }
+        }
+        val descendants = descendants(closures)
+        forRange(size, parallel) { index ->
+            val set = children(infos[index])
+            descendants.forEach(index) { set.add(infos[it]) }
+        }
+        return true
+    }
+
+    /**
+     * All parents of each index given the direct ones, null if the graph has a cycle.
+     * Classes are processed level by level in topological order, so a parent is complete before its children.
+     */
+    fun closures(direct: Array<IntArray>, parallel: Boolean): Array<IntArray>? {
+        val size = direct.size
+
+        // Kahn's algorithm over direct edges, level = longest path from a root
+        val childCount = IntArray(size)
+        direct.forEach { it.forEach { parent -> childCount[parent]++ } }
+        val directChildren = csr(size, childCount) { emit -> direct.forEachIndexed { child, ps -> ps.forEach { emit(it, child) } } }
+        val pending = IntArray(size) { direct[it].size }
+        val level = IntArray(size)
+        val order = IntArray(size)
+        var head = 0
+        var tail = 0
+        for (index in 0 until size) if (pending[index] == 0) order[tail++] = index
+        while (head < tail) {
+            val current = order[head++]
+            directChildren.forEach(current) { child ->
+                if (level[child] < level[current] + 1) level[child] = level[current] + 1
+                if (--pending[child] == 0) order[tail++] = child
+            }
+        }
+        if (tail != size) return null
+
+        // Parents closure, order is already grouped by level
+        val closure = arrayOfNulls<IntArray>(size)
+        var start = 0
+        while (start < size) {
+            var end = start
+            while (end < size && level[order[end]] == level[order[start]]) end++
+            val from = start
+            forRange(end - from, parallel) { offset ->
+                val index = order[from + offset]
+                val parents = direct[index]
+                if (parents.size == 1) {
+                    val inherited = closure[parents[0]]!!
+                    closure[index] = IntArray(inherited.size + 1).also {
+                        it[0] = parents[0]
+                        inherited.copyInto(it, 1)
+                    }
+                } else {
+                    val seen = IntOpenHashSet(parents)
+                    val ids = IntArrayList(parents)
+                    parents.forEach { parent -> closure[parent]!!.forEach { if (seen.add(it)) ids.add(it) } }
+                    closure[index] = ids.toIntArray()
+                }
+            }
+            start = end
+        }
+        @Suppress("UNCHECKED_CAST")
+        return closure as Array<IntArray>
+    }
+
+    /**
+     * Descendants of each index in ascending order, inverse of closures
+     */
+    fun descendants(closures: Array<IntArray>): Adjacency {
+        val size = closures.size
+        val descendantCount = IntArray(size)
+        closures.forEach { ids -> ids.forEach { descendantCount[it]++ } }
+        return csr(size, descendantCount) { emit ->
+            closures.forEachIndexed { child, ids -> ids.forEach { emit(it, child) } }
+        }
+    }
+
+    fun forEach(size: Int, parallel: Boolean, action: (Int) -> Unit) = forRange(size, parallel, action)
+
+    class Adjacency(private val offsets: IntArray, private val values: IntArray) {
+        fun size(index: Int) = offsets[index + 1] - offsets[index]
+
+        inline fun forEach(index: Int, action: (Int) -> Unit) {
+            for (i in offset(index) until offset(index + 1)) action(value(i))
+        }
+
+        @PublishedApi
+        internal fun offset(index: Int) = offsets[index]
+
+        @PublishedApi
+        internal fun value(index: Int) = values[index]
+    }
+
+    // Compressed adjacency lists, values of each key keep their emitting order
+    private inline fun csr(size: Int, counts: IntArray, fill: ((Int, Int) -> Unit) -> Unit): Adjacency {
+        val offsets = IntArray(size + 1)
+        for (index in 0 until size) offsets[index + 1] = offsets[index] + counts[index]
+        val values = IntArray(offsets[size])
+        val cursor = offsets.copyOf(size)
+        fill { key, value -> values[cursor[key]++] = value }
+        return Adjacency(offsets, values)
+    }
+
+    private fun forRange(size: Int, parallel: Boolean, action: (Int) -> Unit) {
+        if (!parallel || size < MIN_PARALLEL) {
+            for (index in 0 until size) action(index)
+            return
+        }
+        val chunk = maxOf(256, size / (Runtime.getRuntime().availableProcessors() * 4))
+        runBlocking {
+            for (from in 0 until size step chunk) {
+                val to = minOf(size, from + chunk)
+                launch(Dispatchers.Default) { for (index in from until to) action(index) }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package net.spartanb312.grunt.process.hierarchy
+
+import net.spartanb312.grunt.process.hierarchy.krypton.HeavyHierarchy
+import net.spartanb312.grunt.process.resource.ResourceCache
+import net.spartanb312.grunt.utils.logging.Logger
+import org.objectweb.asm.tree.ClassNode
+import kotlin.system.measureTimeMillis
+
+/**
+ * Shared class hierarchy
+ * Built once with libraries included and kept up to date by addClass, removeClass and applyRemap.
+ * Changes made around those (direct writes to classes, edited parents) are picked up on the next request.
+ * Member level hierarchies are built on request on top of the shared class level.
+ */
+class HierarchyService(private val resourceCache: ResourceCache) {
+
+    enum class Detail {
+        CLASSES,
+        FIELDS,
+        METHODS,
+        LINKED_FIELDS, // Field parents, children and sources
+        LINKED_METHODS // Method parents, children, sources, competitors and related methods
+    }
+
+    private var hierarchy: Hierarchy? = null
+    private val programNames = HashSet<String>()
+
+    val isBuilt get() = hierarchy != null
+
+    /**
+     * Class level hierarchy including libraries
+     */
+    @Synchronized
+    fun classes(): Hierarchy {
+        val current = hierarchy
+        if (current != null && sync(current)) return current
+        return build()
+    }
+
+    /**
+     * Fresh krypton hierarchy with the requested members, its class level copied from the shared one
+     */
+    fun krypton(vararg details: Detail): HeavyHierarchy {
+        val source = classes()
+        return HeavyHierarchy(resourceCache).apply {
+            buildClass(source)
+            if (Detail.LINKED_FIELDS in details) buildField()
+            else if (Detail.FIELDS in details) buildFieldFast()
+            if (Detail.LINKED_METHODS in details) buildMethod()
+            else if (Detail.METHODS in details) buildMethodFast()
+        }
+    }
+
+    @Synchronized
+    fun build(): Hierarchy {
+        val hierarchy = Hierarchy(resourceCache)
+        val time = measureTimeMillis { hierarchy.build(true) }
+        Logger.info("Built ${hierarchy.size} class hierarchies in $time ms")
+        programNames.clear()
+        programNames.addAll(resourceCache.classes.keys)
+        this.hierarchy = hierarchy
+        return hierarchy
+    }
+
+    @Synchronized
+    fun invalidate() {
+        hierarchy = null
+        programNames.clear()
+    }
+
+    @Synchronized
+    fun onAdd(classNode: ClassNode) {
+        val current = hierarchy ?: return
+        if (current.addClass(classNode)) programNames.add(classNode.name) else invalidate()
+    }
+
+    @Synchronized
+    fun onRemove(name: String) {
+        val current = hierarchy ?: return
+        if (current.removeClass(name)) programNames.remove(name) else invalidate()
+    }
+
+    /**
+     * Called after classes are remapped, nodes are replaced by remapped copies even if names stay the same
+     */
+    @Synchronized
+    fun onRemap(classMappings: Map<String, String>) {
+        val current = hierarchy ?: return
+        if (classMappings.isNotEmpty()) {
+            current.remap(classMappings)
+            val renamed = programNames.map { classMappings[it] ?: it }
+            programNames.clear()
+            programNames.addAll(renamed)
+        }
+        if (!sync(current)) invalidate()
+    }
+
+    // Reconcile with classes changed behind our back, false if a rebuild is needed
+    private fun sync(current: Hierarchy): Boolean {
+        val classes = resourceCache.classes
+        for ((name, classNode) in classes) {
+            val info = current.getClassInfoOrNull(name)
+            if (info != null && info.classNode === classNode && info.isLinkedTo(classNode)) continue
+            if (!current.addClass(classNode)) return false
+            programNames.add(name)
+        }
+        if (programNames.size != classes.size) {
+            val removed = programNames.filter { it !in classes }
+            removed.forEach {
+                if (!current.removeClass(it)) return false
+                programNames.remove(it)
+            }
+        }
+        return true
+    }
+
+}
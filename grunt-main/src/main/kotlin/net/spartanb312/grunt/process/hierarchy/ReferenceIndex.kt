@@ -0,0 +1,137 @@
+package net.spartanb312.grunt.process.hierarchy
+
+import it.unimi.dsi.fastutil.ints.IntArrayList
+import org.objectweb.asm.tree.ClassNode
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+/**
+ * Owners referenced by field and method instructions of each class, as ids of a shared name table
+ * Scanned in one parallel pass by refresh() where it is used, classes missed there are scanned on lookup.
+ * Transformers rewrite instructions in place, so every entry goes stale once a transformer finishes,
+ * and a class gets scanned again once a fused pass went over it or its node was replaced.
+ * Whether an owner id is missing is kept per hierarchy version, so each owner is resolved once
+ * and a check is a lookup per owner. Names no current class references are never resolved.
+ */
+class ReferenceIndex {
+
+    private class Entry(val classNode: ClassNode, val generation: Int, val owners: IntArray)
+
+    private class MissingIds(val hierarchy: Hierarchy, val version: Int, size: Int) {
+        // Per id, 0 not resolved yet, 1 present, 2 missing
+        val states = AtomicIntegerArray(size)
+        val infos = ConcurrentHashMap<Int, Hierarchy.ClassInfo>()
+    }
+
+    private val entries = ConcurrentHashMap<String, Entry>()
+    private val dirty = ConcurrentHashMap.newKeySet<String>()
+    private val generation = AtomicInteger()
+
+    // Name table, ids are handed out under the lock and published through the map
+    private val ids = ConcurrentHashMap<String, Int>()
+    private val lock = Any()
+    @Volatile
+    private var names = arrayOfNulls<String>(256)
+    private var count = 0
+
+    @Volatile
+    private var missingIds: MissingIds? = null
+
+    /**
+     * Scan the classes whose entries are stale or absent
+     */
+    fun refresh(classes: Collection<ClassNode>, parallel: Boolean) {
+        val current = generation.get()
+        val stale = classes.filter { !isCurrent(it, current) }
+        HierarchyGraph.forEach(stale.size, parallel) { index ->
+            val classNode = stale[index]
+            dirty.remove(classNode.name)
+            entries[classNode.name] = scan(classNode, current)
+        }
+    }
+
+    /**
+     * Called after each transformer
+     */
+    fun invalidate() {
+        generation.incrementAndGet()
+    }
+
+    /**
+     * The class was rewritten while the transformer is still running
+     */
+    fun markDirty(classNode: ClassNode) {
+        dirty.add(classNode.name)
+    }
+
+    fun clear() {
+        entries.clear()
+        dirty.clear()
+        missingIds = null
+    }
+
+    /**
+     * Referenced classes which are missing, same as ReferenceSearch.checkMissing without duplicates
+     */
+    fun checkMissing(classNode: ClassNode, hierarchy: Hierarchy): List<Hierarchy.ClassInfo> {
+        val owners = entry(classNode).owners
+        var missing = missingIds(hierarchy)
+        var result: MutableList<Hierarchy.ClassInfo>? = null
+        for (id in owners) {
+            if (id >= missing.states.length()) missing = missingIds(hierarchy, true)
+            val state = missing.states.get(id)
+            if (state == 1) continue
+            val info = if (state == 2) missing.infos.getValue(id) else {
+                val resolved = hierarchy.getClassInfo(names[id]!!)
+                if (resolved.isBroken) missing.infos[id] = resolved
+                missing.states.set(id, if (resolved.isBroken) 2 else 1)
+                if (!resolved.isBroken) continue
+                resolved
+            }
+            (result ?: mutableListOf<Hierarchy.ClassInfo>().also { result = it }).add(info)
+        }
+        return result ?: emptyList()
+    }
+
+    private fun missingIds(hierarchy: Hierarchy, grow: Boolean = false): MissingIds {
+        val version = hierarchy.version
+        val size = synchronized(lock) { names.size }
+        missingIds?.let {
+            if (it.hierarchy === hierarchy && it.version == version && !(grow && it.states.length() < size)) return it
+        }
+        return MissingIds(hierarchy, version, size).also { missingIds = it }
+    }
+
+    private fun isCurrent(classNode: ClassNode, current: Int): Boolean {
+        val entry = entries[classNode.name] ?: return false
+        return entry.classNode === classNode && entry.generation == current && classNode.name !in dirty
+    }
+
+    private fun entry(classNode: ClassNode): Entry {
+        val current = generation.get()
+        if (isCurrent(classNode, current)) entries[classNode.name]?.let { return it }
+        dirty.remove(classNode.name)
+        return scan(classNode, current).also { entries[classNode.name] = it }
+    }
+
+    private fun scan(classNode: ClassNode, generation: Int): Entry {
+        val owners = IntArrayList()
+        val seen = HashSet<String>()
+        classNode.methods.forEach { methodNode ->
+            methodNode.instructions.forEach { insn ->
+                ReferenceSearch.ownerOf(insn)?.let { if (seen.add(it)) owners.add(idOf(it)) }
+            }
+        }
+        return Entry(classNode, generation, owners.toIntArray())
+    }
+
+    private fun idOf(name: String): Int = ids[name] ?: ids.computeIfAbsent(name) {
+        synchronized(lock) {
+            if (count == names.size) names = names.copyOf(count * 2)
+            names[count] = name
+            count++
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package net.spartanb312.grunt.process.hierarchy
 
+import org.objectweb.asm.tree.AbstractInsnNode
 import org.objectweb.asm.tree.ClassNode
 import org.objectweb.asm.tree.FieldInsnNode
 import org.objectweb.asm.tree.MethodInsnNode
@@ -18,21 +19,24 @@ object ReferenceSearch {
     fun checkMissing(methodNode: MethodNode, hierarchy: Hierarchy): List<Hierarchy.ClassInfo> {
         val missingReference = mutableListOf<Hierarchy.ClassInfo>()
         methodNode.instructions.forEach { insn ->
-            if (insn is FieldInsnNode) {
-                val name = if (!insn.owner.startsWith("[")) insn.owner
-                else insn.owner.substringAfterLast("[").removePrefix("L").removeSuffix(";")
-                val info = hierarchy.getClassInfo(name)
-                if (info.isBroken) missingReference.add(info)
-
-            }
-            if (insn is MethodInsnNode) {
-                val name = if (!insn.owner.startsWith("[")) insn.owner
-                else insn.owner.substringAfterLast("[").removePrefix("L").removeSuffix(";")
-                val info = hierarchy.getClassInfo(name)
-                if (info.isBroken) missingReference.add(info)
-            }
+            val name = ownerOf(insn) ?: return@forEach
+            val info = hierarchy.getClassInfo(name)
+            if (info.isBroken) missingReference.add(info)
         }
         return missingReference
     }
 
+    /**
+     * Owner class of a field or method instruction, array owners are reduced to their element type
+     */
+    fun ownerOf(insn: AbstractInsnNode): String? {
+        val owner = when (insn) {
+            is FieldInsnNode -> insn.owner
+            is MethodInsnNode -> insn.owner
+            else -> return null
+        }
+        return if (!owner.startsWith("[")) owner
+        else owner.substringAfterLast("[").removePrefix("L").removeSuffix(";")
+    }
+
 }
\ No newline at end of file
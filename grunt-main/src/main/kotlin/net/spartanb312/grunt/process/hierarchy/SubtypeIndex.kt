@@ -0,0 +1,220 @@
+package net.spartanb312.grunt.process.hierarchy
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap
+import java.util.BitSet
+
+/**
+ * Constant time subtype checks
+ * Superclass edges form a forest numbered by a DFS, subclass checks compare pre/post numbers.
+ * Everything reachable through an interface edge gets an id, each class keeps a bitset of such ids it reaches.
+ * Classes adding nothing to their superclass share its bitset.
+ */
+class SubtypeIndex private constructor(
+    private val ids: Object2IntOpenHashMap<String>,
+    private val names: Array<String?>,
+    private val superIds: IntArray,
+    private val interfaceFlags: BooleanArray,
+    private val pre: IntArray,
+    private val post: IntArray,
+    private val bitIds: IntArray,
+    private val bits: Array<BitSet>
+) {
+
+    operator fun contains(name: String) = ids.containsKey(name)
+
+    /**
+     * Drop a removed class, queries about it fall back to the hierarchy
+     */
+    fun forget(name: String) {
+        val id = ids.removeInt(name)
+        if (id != -1) names[id] = null
+    }
+
+    /**
+     * Same index with classes renamed
+     */
+    fun remap(mappings: Map<String, String>): SubtypeIndex {
+        val newIds = Object2IntOpenHashMap<String>(ids.size).apply { defaultReturnValue(-1) }
+        val newNames = arrayOfNulls<String>(names.size)
+        ids.object2IntEntrySet().forEach {
+            val name = mappings[it.key] ?: it.key
+            newIds.put(name, it.intValue)
+            newNames[it.intValue] = name
+        }
+        return SubtypeIndex(newIds, newNames, superIds, interfaceFlags, pre, post, bitIds, bits)
+    }
+
+    /**
+     * Null if either class was not indexed
+     */
+    fun isSubType(child: String, father: String): Boolean? {
+        if (child == father) return true
+        val childId = ids.getInt(child)
+        val fatherId = ids.getInt(father)
+        if (childId == -1 || fatherId == -1) return null
+        return isSubType(childId, fatherId)
+    }
+
+    /**
+     * Same answer as ClassWriter.getCommonSuperClass, null if either class is unknown
+     * or the superclass chain ends in a missing class
+     */
+    fun getCommonSuperClass(type1: String, type2: String): String? {
+        val id1 = ids.getInt(type1)
+        val id2 = ids.getInt(type2)
+        if (id1 == -1 || id2 == -1) return null
+        if (isSubType(id2, id1)) return type1
+        if (isSubType(id1, id2)) return type2
+        if (interfaceFlags[id1] || interfaceFlags[id2]) return OBJECT
+        var current = superIds[id1]
+        while (current != -1) {
+            if (isSubClass(id2, current)) return names[current] ?: return null
+            current = superIds[current]
+        }
+        return null
+    }
+
+    private fun isSubType(child: Int, father: Int): Boolean {
+        if (child == father || isSubClass(child, father)) return true
+        val bit = bitIds[father]
+        return bit != -1 && bits[child][bit]
+    }
+
+    private fun isSubClass(child: Int, father: Int) = pre[father] <= pre[child] && post[child] <= post[father]
+
+    companion object {
+
+        private const val OBJECT = "java/lang/Object"
+
+        /**
+         * Build from direct edges, returns null if the graph has a cycle
+         */
+        fun <T : Any> build(
+            infos: List<T>,
+            name: (T) -> String,
+            superName: (T) -> String?,
+            interfaces: (T) -> Collection<String>,
+            isInterface: (T) -> Boolean
+        ): SubtypeIndex? {
+            val size = infos.size
+            val ids = Object2IntOpenHashMap<String>(size).apply { defaultReturnValue(-1) }
+            val names = Array<String?>(size) { name(infos[it]) }
+            names.forEachIndexed { index, it -> ids.put(it!!, index) }
+            val superIds = IntArray(size) { superName(infos[it])?.let { name -> ids.getInt(name) } ?: -1 }
+            val interfaceIds = Array(size) { index ->
+                interfaces(infos[index]).map { ids.getInt(it) }.filter { it != -1 }.distinct().toIntArray()
+            }
+
+            // DFS numbering over superclass edges
+            val firstChild = IntArray(size) { -1 }
+            val nextSibling = IntArray(size) { -1 }
+            for (index in size - 1 downTo 0) {
+                val parent = superIds[index]
+                if (parent != -1) {
+                    nextSibling[index] = firstChild[parent]
+                    firstChild[parent] = index
+                }
+            }
+            val pre = IntArray(size) { -1 }
+            val post = IntArray(size)
+            val stack = IntArray(size)
+            var counter = 0
+            var visited = 0
+            for (root in 0 until size) {
+                if (superIds[root] != -1) continue
+                var depth = 0
+                stack[depth++] = root
+                pre[root] = counter++
+                visited++
+                while (depth > 0) {
+                    val current = stack[depth - 1]
+                    val child = firstChild[current]
+                    if (child != -1) {
+                        firstChild[current] = nextSibling[child]
+                        pre[child] = counter++
+                        visited++
+                        stack[depth++] = child
+                    } else {
+                        post[current] = counter++
+                        depth--
+                    }
+                }
+            }
+            if (visited != size) return null // Superclass cycle
+
+            // Topological order over all edges
+            val pending = IntArray(size) { (if (superIds[it] != -1) 1 else 0) + interfaceIds[it].size }
+            val childCount = IntArray(size + 1)
+            for (index in 0 until size) {
+                if (superIds[index] != -1) childCount[superIds[index] + 1]++
+                interfaceIds[index].forEach { childCount[it + 1]++ }
+            }
+            for (index in 0 until size) childCount[index + 1] += childCount[index]
+            val edges = IntArray(childCount[size])
+            val cursor = childCount.copyOf(size)
+            for (index in 0 until size) {
+                if (superIds[index] != -1) edges[cursor[superIds[index]]++] = index
+                interfaceIds[index].forEach { edges[cursor[it]++] = index }
+            }
+            val order = IntArray(size)
+            var head = 0
+            var tail = 0
+            for (index in 0 until size) if (pending[index] == 0) order[tail++] = index
+            while (head < tail) {
+                val current = order[head++]
+                for (edge in childCount[current] until childCount[current + 1]) {
+                    if (--pending[edges[edge]] == 0) order[tail++] = edges[edge]
+                }
+            }
+            if (tail != size) return null // Interface cycle
+
+            // Types reachable through an interface edge, frequent ones get small ids to keep bitsets short
+            val reachable = BooleanArray(size)
+            val references = IntArray(size)
+            for (index in 0 until size) {
+                interfaceIds[index].forEach {
+                    reachable[it] = true
+                    references[it]++
+                }
+            }
+            for (index in order.reversed()) {
+                if (!reachable[index]) continue
+                if (superIds[index] != -1) reachable[superIds[index]] = true
+                interfaceIds[index].forEach { reachable[it] = true }
+            }
+            for (index in 0 until size) {
+                if (superIds[index] != -1) references[superIds[index]]++
+            }
+            val bitIds = IntArray(size) { -1 }
+            (0 until size).filter { reachable[it] }
+                .sortedByDescending { references[it] }
+                .forEachIndexed { bit, index -> bitIds[index] = bit }
+
+            // Reachable bits in topological order, parents first
+            val empty = BitSet(0)
+            val bits = arrayOfNulls<BitSet>(size)
+            order.forEach { index ->
+                val superId = superIds[index]
+                val inherited = if (superId != -1) bits[superId]!! else empty
+                val superBit = if (superId != -1) bitIds[superId] else -1
+                if (interfaceIds[index].isEmpty() && (superBit == -1 || inherited[superBit])) {
+                    bits[index] = inherited
+                } else {
+                    val set = inherited.clone() as BitSet
+                    if (superBit != -1) set.set(superBit)
+                    interfaceIds[index].forEach { parent ->
+                        set.or(bits[parent]!!)
+                        set.set(bitIds[parent])
+                    }
+                    bits[index] = if (set == inherited) inherited else set
+                }
+            }
+
+            val interfaceFlags = BooleanArray(size) { isInterface(infos[it]) }
+            @Suppress("UNCHECKED_CAST")
+            return SubtypeIndex(ids, names, superIds, interfaceFlags, pre, post, bitIds, bits as Array<BitSet>)
+        }
+
+    }
+
+}
@@ -1,6 +1,8 @@
 package net.spartanb312.grunt.process.hierarchy.krypton
 
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap
 import net.spartanb312.grunt.process.resource.ResourceCache
+import net.spartanb312.grunt.process.hierarchy.krypton.info.IdList
 import net.spartanb312.grunt.process.hierarchy.krypton.info.MethodInfo
 import net.spartanb312.grunt.utils.extensions.isInitializer
 import net.spartanb312.grunt.utils.extensions.isPrivate
@@ -31,16 +33,17 @@ class HeavyHierarchy(resourceCache: ResourceCache) : Hierarchy(resourceCache) {
         fillVirtualMethod()
         fillMethodHierarchyInfo()
         findMethodSource()
-        findMethodCompetitor()
-        findMethodRelated()
+        val related = UnionFind(table.methods.size)
+        findMethodCompetitor(related)
+        findMethodRelated(related)
     }
 
     private fun fillVirtualMethod() {
         classInfos.values.forEach { classInfo ->
-            classInfo.methods.forEach { methodInfo ->
+            classInfo.methods.toTypedArray().forEach { methodInfo ->
                 if (methodInfo.isSourceMethod && !methodInfo.owner.missingDependencies) {
                     methodInfo.owner.children.forEach { childClass ->
-                        if (childClass.methods.none { it.code == methodInfo.code }) { // it.desc == methodInfo.desc && it.name == methodInfo.name
+                        if (!childClass.methodTable.containsKey(methodInfo.code)) {
                             // add virtual
                             val virtualNode = MethodNode(
                                 Opcodes.ACC_PUBLIC,
@@ -50,7 +53,7 @@ class HeavyHierarchy(resourceCache: ResourceCache) : Hierarchy(resourceCache) {
                                 null,
                             )
                             val virtualMethodInfo = MethodInfo(childClass, virtualNode, methodCoder, true)
-                            childClass.methods.add(virtualMethodInfo)
+                            childClass.addMethod(virtualMethodInfo)
                             methodInfo.children.add(virtualMethodInfo)
                             virtualMethodInfo.parents.add(methodInfo)
                         }
@@ -60,37 +63,21 @@ class HeavyHierarchy(resourceCache: ResourceCache) : Hierarchy(resourceCache) {
         }
     }
 
+    // Members with the same name and desc share the code, linking is one table lookup per class pair
     private fun fillFieldHierarchyInfo() {
         classInfos.values.forEach { classInfo ->
             classInfo.fields.forEach { fieldInfo ->
-                val fieldNode = fieldInfo.fieldNode
-                if (!fieldNode.isPrivate) {
+                if (!fieldInfo.fieldNode.isPrivate) {
                     // Up check
                     classInfo.children.forEach { child ->
-                        child.fields.forEach { childField ->
-                            val childFieldNode = childField.fieldNode
-                            // Only public field may inherit from this field
-                            if (!childFieldNode.isPrivate/* && !childFieldNode.isProtected*/) {
-                                val fieldName = childFieldNode.name
-                                val desc = childFieldNode.desc
-                                if (fieldNode.desc == desc && fieldNode.name == fieldName) {
-                                    fieldInfo.children.add(childField)
-                                }
-                            }
-                        }
+                        val childField = child.fieldTable[fieldInfo.code]
+                        // Only public field may inherit from this field
+                        if (childField != null && !childField.fieldNode.isPrivate) fieldInfo.children.add(childField)
                     }
                     // Down check
                     classInfo.parents.forEach { parent ->
-                        parent.fields.forEach { parentField ->
-                            val parentFieldNode = parentField.fieldNode
-                            if (!parentFieldNode.isPrivate) {
-                                val fieldName = parentFieldNode.name
-                                val desc = parentFieldNode.desc
-                                if (fieldNode.desc == desc && fieldNode.name == fieldName) {
-                                    fieldInfo.parents.add(parentField)
-                                }
-                            }
-                        }
+                        val parentField = parent.fieldTable[fieldInfo.code]
+                        if (parentField != null && !parentField.fieldNode.isPrivate) fieldInfo.parents.add(parentField)
                     }
                 }
                 fieldInfo.filled = true
@@ -106,38 +93,21 @@ class HeavyHierarchy(resourceCache: ResourceCache) : Hierarchy(resourceCache) {
                     // Up check
                     if (!methodInfo.virtual) { // Virtual method can't be a parent
                         for (child in classInfo.children) {
-                            for (childMethod in child.methods) {
-                                if (!childMethod.virtual) {
-                                    val childMethodNode = childMethod.methodNode
-                                    // Only public field may inherit from this method
-                                    if (!childMethodNode.isPrivate/* && !childMethodNode.isProtected*/) {
-                                        val methodName = childMethodNode.name
-                                        val desc = childMethodNode.desc
-                                        if (methodNode.desc == desc && methodNode.name == methodName) {
-                                            methodInfo.children.add(childMethod)
-                                        }
-                                    }
-                                }
+                            val childMethod = child.methodTable[methodInfo.code] ?: continue
+                            // Only public method may inherit from this method
+                            if (!childMethod.virtual && !childMethod.methodNode.isPrivate) {
+                                methodInfo.children.add(childMethod)
                             }
                         }
                     }
                     // Down check
-//                    if (!methodNode.isProtected) {
                     for (parent in classInfo.parents) {
-                        for (parentMethod in parent.methods) {
-                            if (!parentMethod.virtual) { // Virtual method can't be a parent
-                                val parentMethodNode = parentMethod.methodNode
-                                if (!parentMethodNode.isPrivate) {
-                                    val methodName = parentMethodNode.name
-                                    val desc = parentMethodNode.desc
-                                    if (methodNode.desc == desc && methodNode.name == methodName) {
-                                        methodInfo.parents.add(parentMethod)
-                                    }
-                                }
-                            }
+                        val parentMethod = parent.methodTable[methodInfo.code] ?: continue
+                        // Virtual method can't be a parent
+                        if (!parentMethod.virtual && !parentMethod.methodNode.isPrivate) {
+                            methodInfo.parents.add(parentMethod)
                         }
                     }
-//                    }
                 }
                 methodInfo.filled = true
             }
@@ -168,7 +138,8 @@ class HeavyHierarchy(resourceCache: ResourceCache) : Hierarchy(resourceCache) {
             classInfo.methods.forEach { methodInfo ->
                 if (!methodInfo.isSourceMethod) {
                     val candidate = methodInfo.parents.filter { it.isSourceMethod }
-                    candidate.forEach { t1 ->
+                    if (candidate.size == 1) methodInfo.sources.add(candidate[0])
+                    else candidate.forEach { t1 ->
                         var flag1 = true
                         var flag2 = true
                         candidate.forEach { t2 ->
@@ -188,30 +159,20 @@ class HeavyHierarchy(resourceCache: ResourceCache) : Hierarchy(resourceCache) {
         }
     }
 
-    private fun findMethodCompetitor() {
+    // Sources of a shared child compete when they have no common super class, each pair is joined in related
+    private fun findMethodCompetitor(related: UnionFind) {
         classInfos.values.forEach { classInfo ->
             classInfo.methods.forEach { methodInfo ->
                 if (methodInfo.isSourceMethod && methodInfo.children.isNotEmpty()) {
                     methodInfo.children.forEach { child ->
                         if (child.multiSource) {
                             child.sources.forEach { otherSource ->
-                                val competitorCandidate = mutableListOf<MethodInfo>()
                                 if (otherSource != methodInfo
                                     && getCommonSuperClass(otherSource.owner, methodInfo.owner) == null
-                                ) competitorCandidate.add(otherSource)
-                                competitorCandidate.forEach { t1 ->
-                                    var flag1 = true
-                                    var flag2 = true
-                                    competitorCandidate.forEach { t2 ->
-                                        if (t2 != t1) {
-                                            if (getCommonSuperClass(t1.owner, t2.owner) != null) flag1 = false
-                                            if (!isSubType(t2.owner, t1.owner)) flag2 = false
-                                        }
-                                    }
-                                    if (flag1 || flag2) {
-                                        methodInfo.competitors.add(t1)
-                                        t1.competitors.add(methodInfo)
-                                    }
+                                ) {
+                                    methodInfo.competitors.add(otherSource)
+                                    otherSource.competitors.add(methodInfo)
+                                    related.union(methodInfo.id, otherSource.id)
                                 }
                             }
                         }
@@ -221,24 +182,12 @@ class HeavyHierarchy(resourceCache: ResourceCache) : Hierarchy(resourceCache) {
         }
     }
 
-    private fun findMethodRelated() {
-        classInfos.values.forEach { classInfo ->
-            classInfo.methods.forEach { methodInfo ->
-                if (methodInfo.competitors.isNotEmpty()) {
-                    val visited = mutableSetOf<MethodInfo>()
-                    fun visit(methodInfo: MethodInfo) {
-                        if (!visited.contains(methodInfo)) {
-                            visited.add(methodInfo)
-                            // Visit all competitors
-                            methodInfo.competitors.forEach {
-                                visit(it)
-                            }
-                        }
-                    }
-                    visit(methodInfo)
-                    methodInfo.relatedMethods.addAll(visited)
-                }
-            }
+    // Methods connected through competitors share one group
+    private fun findMethodRelated(related: UnionFind) {
+        val groups = Int2ObjectOpenHashMap<IdList>()
+        table.methods.forEach { methodInfo ->
+            val root = related.find(methodInfo.id)
+            if (related.size(root) > 1) methodInfo.group = groups.getOrPut(root) { IdList() }.apply { add(methodInfo.id) }
         }
     }
 
@@ -1,8 +1,16 @@
 package net.spartanb312.grunt.process.hierarchy.krypton
 
+import it.unimi.dsi.fastutil.ints.IntArrayList
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap
+import net.spartanb312.grunt.config.Configs
+import net.spartanb312.grunt.process.hierarchy.HierarchyGraph
+import net.spartanb312.grunt.process.hierarchy.Hierarchy as ClassHierarchy
+import net.spartanb312.grunt.process.hierarchy.SubtypeIndex
 import net.spartanb312.grunt.process.resource.ResourceCache
 import net.spartanb312.grunt.process.hierarchy.krypton.info.ClassInfo
 import net.spartanb312.grunt.process.hierarchy.krypton.info.FieldInfo
+import net.spartanb312.grunt.process.hierarchy.krypton.info.InfoTable
 import net.spartanb312.grunt.process.hierarchy.krypton.info.MethodInfo
 import net.spartanb312.grunt.process.hierarchy.krypton.info.NameCoder
 import net.spartanb312.grunt.utils.extensions.isInterface
@@ -19,11 +27,18 @@ open class Hierarchy(val resourceCache: ResourceCache) {
     private val missingDependencies = mutableMapOf<ClassInfo, List<ClassInfo>>() // Missing, Affected
     open val size get() = classInfos.size
     val methodCoder = NameCoder()
+    val fieldCoder = NameCoder()
+    val table = InfoTable()
+    private var prepared: Map<String, ClassInfo> = emptyMap()
+    private var subtypes: SubtypeIndex? = null
 
     fun clear() {
         classInfos.clear()
         missingDependencies.clear()
+        subtypes = null
+        table.clear()
         methodCoder.clear()
+        fieldCoder.clear()
     }
 
     fun buildAll() {
@@ -33,8 +48,13 @@ open class Hierarchy(val resourceCache: ResourceCache) {
     }
 
     open fun buildClass() {
-        // Build all class infos
-        resourceCache.allClasses.forEach { getClassInfo(it) }
+        // Build all class infos, nodes are resolved concurrently and linked in order
+        val roots = resourceCache.allClasses.map { it.name }
+        prepared = HierarchyGraph.resolve(
+            resourceCache, roots, ClassInfo.missingClassNode, Configs.Settings.parallel, ::ClassInfo
+        )
+        roots.forEach { getClassInfo(it) }
+        prepared = emptyMap()
         fillClassHierarchyInfo()
 
         // Missing dependencies
@@ -47,8 +67,8 @@ open class Hierarchy(val resourceCache: ResourceCache) {
         // Build all field infos
         classInfos.values.forEach { classInfo ->
             classInfo.classNode.fields.forEach { fieldNode ->
-                val fieldInfo = FieldInfo(classInfo, fieldNode)
-                classInfo.fields.add(fieldInfo)
+                val fieldInfo = FieldInfo(classInfo, fieldNode, fieldCoder)
+                classInfo.addField(fieldInfo)
             }
         }
 
@@ -59,11 +79,39 @@ open class Hierarchy(val resourceCache: ResourceCache) {
         classInfos.values.forEach { classInfo ->
             classInfo.classNode.methods.forEach { methodNode ->
                 val methodInfo = MethodInfo(classInfo, methodNode, methodCoder)
-                classInfo.methods.add(methodInfo)
+                classInfo.addMethod(methodInfo)
             }
         }
     }
 
+    /**
+     * Copy the class level of a shared hierarchy instead of resolving everything again
+     */
+    fun buildClass(source: ClassHierarchy) {
+        val sourceInfos = source.infos.toList()
+        val ids = Object2IntOpenHashMap<ClassHierarchy.ClassInfo>(sourceInfos.size)
+        sourceInfos.forEach {
+            val copy = ClassInfo(it.name, if (it.isBroken) ClassInfo.missingClassNode else it.classNode)
+            table.register(copy)
+            ids.put(it, copy.id)
+            classInfos[copy.name] = copy
+        }
+        HierarchyGraph.forEach(sourceInfos.size, Configs.Settings.parallel) { index ->
+            val info = sourceInfos[index]
+            val copy = table.classes[ids.getInt(info)]
+            copy.parentIds.set(info.parents.mapToIntArray { ids.getInt(it) })
+            copy.childIds.set(info.children.mapToIntArray { ids.getInt(it) })
+            copy.iterated = true
+            copy.missingDependencies = copy.parents.any { it.isBroken } || copy.isBroken
+        }
+        subtypes = source.subtypeIndex
+
+        // Missing dependencies
+        classInfos.values.forEach {
+            if (it.isBroken) missingDependencies[it] = it.children.toList()
+        }
+    }
+
     fun getClassInfo(classNode: ClassNode): ClassInfo = getClassInfo(classNode.name)
 
     fun getClassInfo(className: String): ClassInfo {
@@ -71,6 +119,53 @@ open class Hierarchy(val resourceCache: ResourceCache) {
     }
 
     private fun fillClassHierarchyInfo() {
+        val parallel = Configs.Settings.parallel
+        val infos = classInfos.values.toList()
+        if (!fillIds(infos, parallel)) iterate()
+        subtypes = SubtypeIndex.build(infos, { it.name }, { it.superName }, { it.interfaces ?: emptyList() }) {
+            it.isInterface
+        }
+
+        // Update missing dependencies states
+        HierarchyGraph.forEach(infos.size, parallel) { index ->
+            val classInfo = infos[index]
+            classInfo.missingDependencies = classInfo.parents.any { it.isBroken } || classInfo.isBroken
+        }
+    }
+
+    // Same as HierarchyGraph.fill over ids, positions follow class info order
+    private fun fillIds(infos: List<ClassInfo>, parallel: Boolean): Boolean {
+        val positions = IntArray(table.classes.size) { -1 }
+        infos.forEachIndexed { position, info -> positions[info.id] = position }
+        val direct = Array(infos.size) { position ->
+            infos[position].parentIds.toIntArray().also { ids ->
+                for (index in ids.indices) ids[index] = positions[ids[index]]
+            }
+        }
+        if (direct.any { it.contains(-1) }) return false
+        val closures = HierarchyGraph.closures(direct, parallel) ?: return false
+        val descendants = HierarchyGraph.descendants(closures)
+        HierarchyGraph.forEach(infos.size, parallel) { position ->
+            val info = infos[position]
+            info.parentIds.set(closures[position].also { ids ->
+                for (index in ids.indices) ids[index] = infos[ids[index]].id
+            })
+            // Direct children keep their linking order
+            val linked = info.childIds.toIntArray()
+            val seen = IntOpenHashSet(linked)
+            val children = IntArrayList(linked.size + descendants.size(position))
+            children.addElements(0, linked)
+            descendants.forEach(position) {
+                val id = infos[it].id
+                if (seen.add(id)) children.add(id)
+            }
+            info.childIds.set(children.toIntArray())
+        }
+        return true
+    }
+
+    // Sequential fallback for cyclic hierarchies
+    private fun iterate() {
         // Iterate parents
         classInfos.values.forEach { classInfo ->
             fun iterateParents(current: ClassInfo): Set<ClassInfo> {
@@ -93,11 +188,6 @@ open class Hierarchy(val resourceCache: ResourceCache) {
                 parent.children.add(classInfo)
             }
         }
-
-        // Update missing dependencies states
-        classInfos.values.forEach { classInfo ->
-            classInfo.missingDependencies = classInfo.parents.any { it.isBroken } || classInfo.isBroken
-        }
     }
 
     private fun buildClassInfo(className: String, subClassInfo: ClassInfo?): ClassInfo {
@@ -108,8 +198,14 @@ open class Hierarchy(val resourceCache: ResourceCache) {
             return existInfo
         } else {
             // Create a new class info
-            val classNode = resourceCache.getClassNode(className) ?: ClassInfo.missingClassNode
-            val newInfo = ClassInfo(className, classNode)
+            val newInfo = prepared[className]
+                ?: ClassInfo(className, resourceCache.getClassNode(className) ?: ClassInfo.missingClassNode)
+            // Still linking its parents, the hierarchy has a cycle
+            if (newInfo.id != -1) {
+                if (subClassInfo != null) newInfo.children.add(subClassInfo)
+                return newInfo
+            }
+            table.register(newInfo)
             if (subClassInfo != null) newInfo.children.add(subClassInfo)
 
             // Solve parents
@@ -127,6 +223,7 @@ open class Hierarchy(val resourceCache: ResourceCache) {
 
     fun isSubType(child: String, father: String): Boolean {
         if (child == father) return true
+        subtypes?.isSubType(child, father)?.let { return it }
         val childInfo = classInfos[child] ?: return false
         val fatherInfo = classInfos[father] ?: return false
         return if (childInfo.parents.contains(fatherInfo)) true
@@ -160,4 +257,11 @@ open class Hierarchy(val resourceCache: ResourceCache) {
         }
     }
 
-}
\ No newline at end of file
+}
+
+private inline fun <T> Collection<T>.mapToIntArray(transform: (T) -> Int): IntArray {
+    val array = IntArray(size)
+    var index = 0
+    forEach { array[index++] = transform(it) }
+    return array
+}
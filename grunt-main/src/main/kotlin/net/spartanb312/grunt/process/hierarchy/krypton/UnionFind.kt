@@ -0,0 +1,34 @@
+package net.spartanb312.grunt.process.hierarchy.krypton
+
+/**
+ * Disjoint sets over ids, union by size with path halving
+ */
+class UnionFind(size: Int) {
+
+    private val parents = IntArray(size) { it }
+    private val sizes = IntArray(size) { 1 }
+
+    fun find(id: Int): Int {
+        var current = id
+        while (parents[current] != current) {
+            parents[current] = parents[parents[current]]
+            current = parents[current]
+        }
+        return current
+    }
+
+    fun union(first: Int, second: Int) {
+        var root1 = find(first)
+        var root2 = find(second)
+        if (root1 == root2) return
+        if (sizes[root1] < sizes[root2]) root1 = root2.also { root2 = root1 }
+        parents[root2] = root1
+        sizes[root1] += sizes[root2]
+    }
+
+    /**
+     * Size of the set, id must be a root
+     */
+    fun size(root: Int) = sizes[root]
+
+}
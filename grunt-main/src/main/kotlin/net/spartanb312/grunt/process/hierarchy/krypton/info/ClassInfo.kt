@@ -1,13 +1,16 @@
 package net.spartanb312.grunt.process.hierarchy.krypton.info
 
-import it.unimi.dsi.fastutil.objects.ObjectArraySet
-import it.unimi.dsi.fastutil.objects.ObjectLinkedOpenHashSet
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap
 import org.objectweb.asm.tree.ClassNode
 
 class ClassInfo(
     val name: String,
     val classNode: ClassNode
-) {
+) : Interned {
+
+    override var id = -1
+        internal set
+    internal var table: InfoTable? = null
 
     var iterated = false
     val superName get() = classNode.superName
@@ -21,11 +24,30 @@ class ClassInfo(
     val isBroken get() = classNode == missingClassNode
     var missingDependencies = false
 
-    var parents = ObjectLinkedOpenHashSet<ClassInfo>()
-    var children = ObjectLinkedOpenHashSet<ClassInfo>()
+    // Ids in the table, parents first direct then inherited, children first direct then the others
+    val parentIds = IdList()
+    val childIds = IdList()
+    val parents: MutableSet<ClassInfo> get() = InfoSet(parentIds, table?.classes ?: emptyList())
+    val children: MutableSet<ClassInfo> get() = InfoSet(childIds, table?.classes ?: emptyList())
+
+    val fields = ArrayList<FieldInfo>()
+    val methods = ArrayList<MethodInfo>()
+
+    // Member tables keyed by NameCoder code of name + desc, first declared wins
+    val fieldTable = Int2ObjectOpenHashMap<FieldInfo>()
+    val methodTable = Int2ObjectOpenHashMap<MethodInfo>()
 
-    var fields = ObjectArraySet<FieldInfo>()
-    var methods = ObjectArraySet<MethodInfo>()
+    fun addField(fieldInfo: FieldInfo) {
+        table?.register(fieldInfo)
+        fields.add(fieldInfo)
+        fieldTable.putIfAbsent(fieldInfo.code, fieldInfo)
+    }
+
+    fun addMethod(methodInfo: MethodInfo) {
+        table?.register(methodInfo)
+        methods.add(methodInfo)
+        methodTable.putIfAbsent(methodInfo.code, methodInfo)
+    }
 
     companion object {
         val missingClassNode = ClassNode()
@@ -5,11 +5,16 @@ import org.objectweb.asm.tree.FieldNode
 
 class FieldInfo(
     val owner: ClassInfo,
-    val fieldNode: FieldNode
-) {
+    val fieldNode: FieldNode,
+    coder: NameCoder
+) : Interned {
+
+    override var id = -1
+        internal set
 
     val name get() = fieldNode.name
     val full get() = "${owner.name}.$name"
+    val code = coder.getCode("$name ${fieldNode.desc}")
 
     var filled = false
     var source = this
@@ -17,8 +22,12 @@ class FieldInfo(
     val isSourceField get() = fieldNode.isPrivate || parents.isEmpty()
     val isStandaloneField get() = fieldNode.isPrivate || (parents.isEmpty() && children.isEmpty())
 
-    val parents = mutableSetOf<FieldInfo>()
-    val children = mutableSetOf<FieldInfo>()
+    val parentIds = IdList()
+    val childIds = IdList()
+    val parents: MutableSet<FieldInfo> get() = InfoSet(parentIds, infos)
+    val children: MutableSet<FieldInfo> get() = InfoSet(childIds, infos)
+
+    private val infos get() = owner.table?.fields ?: emptyList()
 
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
@@ -0,0 +1,173 @@
+package net.spartanb312.grunt.process.hierarchy.krypton.info
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet
+
+/**
+ * Interned infos of one hierarchy
+ * Class, field and method infos get an id here, adjacency is kept as id lists instead of object sets.
+ */
+class InfoTable {
+
+    val classes = ArrayList<ClassInfo>()
+    val fields = ArrayList<FieldInfo>()
+    val methods = ArrayList<MethodInfo>()
+
+    fun register(classInfo: ClassInfo) {
+        classInfo.id = classes.size
+        classInfo.table = this
+        classes.add(classInfo)
+    }
+
+    fun register(fieldInfo: FieldInfo) {
+        fieldInfo.id = fields.size
+        fields.add(fieldInfo)
+    }
+
+    fun register(methodInfo: MethodInfo) {
+        methodInfo.id = methods.size
+        methods.add(methodInfo)
+    }
+
+    fun clear() {
+        classes.clear()
+        fields.clear()
+        methods.clear()
+    }
+
+}
+
+interface Interned {
+    val id: Int
+}
+
+/**
+ * Growable list of distinct ids
+ * Short lists check duplicates by scanning, longer ones build a hash index on first use.
+ */
+class IdList {
+
+    private var ids = EMPTY
+    private var index: IntOpenHashSet? = null
+    var size = 0
+        private set
+
+    operator fun get(position: Int) = ids[position]
+
+    operator fun contains(id: Int): Boolean {
+        if (size <= SCAN_LIMIT) {
+            for (position in 0 until size) if (ids[position] == id) return true
+            return false
+        }
+        val index = index ?: IntOpenHashSet(ids, 0, size).also { index = it }
+        return index.contains(id)
+    }
+
+    fun add(id: Int): Boolean {
+        if (contains(id)) return false
+        if (size == ids.size) ids = ids.copyOf(maxOf(4, size * 2))
+        ids[size++] = id
+        index?.add(id)
+        return true
+    }
+
+    /**
+     * Remove the id keeping the order of the others
+     */
+    fun remove(id: Int): Boolean {
+        for (position in 0 until size) if (ids[position] == id) {
+            removeAt(position)
+            return true
+        }
+        return false
+    }
+
+    fun removeAt(position: Int) {
+        if (position !in 0 until size) throw IndexOutOfBoundsException("$position")
+        val id = ids[position]
+        ids.copyInto(ids, position, position + 1, size)
+        size--
+        index?.remove(id)
+    }
+
+    /**
+     * Replace the content, the ids must be distinct
+     */
+    fun set(values: IntArray) {
+        ids = values
+        size = values.size
+        index = null
+    }
+
+    fun toIntArray(): IntArray = ids.copyOf(size)
+
+    companion object {
+        private const val SCAN_LIMIT = 16
+        private val EMPTY = IntArray(0)
+    }
+
+}
+
+/**
+ * Set view of an id list, ids are resolved through the owning table
+ */
+class InfoSet<T : Interned>(private val ids: IdList, private val infos: List<T>) : AbstractMutableSet<T>() {
+
+    override val size get() = ids.size
+
+    override fun contains(element: T): Boolean {
+        val id = element.id
+        return id != -1 && id in ids && infos[id] == element
+    }
+
+    override fun add(element: T): Boolean {
+        require(element.id != -1) { "Info is not registered" }
+        return ids.add(element.id)
+    }
+
+    override fun remove(element: T): Boolean = contains(element) && ids.remove(element.id)
+
+    override fun iterator(): MutableIterator<T> = object : MutableIterator<T> {
+        private var position = 0
+        private var removable = false
+        override fun hasNext() = position < ids.size
+        override fun next(): T {
+            if (position >= ids.size) throw NoSuchElementException()
+            removable = true
+            return infos[ids[position++]]
+        }
+
+        override fun remove() {
+            check(removable) { "next() has not been called" }
+            removable = false
+            ids.removeAt(--position)
+        }
+    }
+
+}
+
+/**
+ * Read only view of a group, the given member comes first
+ */
+class GroupView<T : Interned>(private val first: T, private val ids: IdList, private val infos: List<T>) : AbstractSet<T>() {
+
+    override val size get() = ids.size
+
+    override fun contains(element: T): Boolean {
+        val id = element.id
+        return id != -1 && id in ids && infos[id] == element
+    }
+
+    override fun iterator(): Iterator<T> = object : Iterator<T> {
+        private var returned = 0
+        private var position = 0
+        override fun hasNext() = returned < ids.size
+        override fun next(): T {
+            if (returned >= ids.size) throw NoSuchElementException()
+            returned++
+            if (returned == 1) return first
+            if (ids[position] == first.id) position++
+            return infos[ids[position++]]
+        }
+    }
+
+}
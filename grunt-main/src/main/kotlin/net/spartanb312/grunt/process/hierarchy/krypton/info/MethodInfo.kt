@@ -8,7 +8,10 @@ class MethodInfo(
     val methodNode: MethodNode,
     coder: NameCoder,
     val virtual: Boolean = false,
-) {
+) : Interned {
+
+    override var id = -1
+        internal set
 
     val name get() = methodNode.name
     val desc get() = methodNode.desc
@@ -17,16 +20,23 @@ class MethodInfo(
 
     var filled = false
 
-    val sources = mutableSetOf<MethodInfo>()
-    val competitors = mutableSetOf<MethodInfo>() // No common super class, have same child with same method
-    val relatedMethods =
-        mutableSetOf<MethodInfo>() // related methods contains all competitors. They should always have the same method name
+    val sourceIds = IdList()
+    val competitorIds = IdList()
+    internal var group: IdList? = null // Shared by all related methods
+    val sources: MutableSet<MethodInfo> get() = InfoSet(sourceIds, infos)
+    val competitors: MutableSet<MethodInfo> get() = InfoSet(competitorIds, infos) // No common super class, have same child with same method
+    val relatedMethods: Set<MethodInfo>
+        get() = group?.let { GroupView(this, it, infos) } ?: emptySet() // related methods contains all competitors. They should always have the same method name
     val multiSource get() = sources.size > 1
     val isSourceMethod get() = methodNode.isPrivate || parents.isEmpty()
     val isStandaloneMethod get() = methodNode.isPrivate || (parents.isEmpty() && children.isEmpty())
 
-    val parents = hashSetOf<MethodInfo>()
-    val children = hashSetOf<MethodInfo>()
+    val parentIds = IdList()
+    val childIds = IdList()
+    val parents: MutableSet<MethodInfo> get() = InfoSet(parentIds, infos)
+    val children: MutableSet<MethodInfo> get() = InfoSet(childIds, infos)
+
+    private val infos get() = owner.table?.methods ?: emptyList()
 
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
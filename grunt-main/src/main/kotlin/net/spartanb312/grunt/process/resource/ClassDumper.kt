@@ -1,49 +1,25 @@
 package net.spartanb312.grunt.process.resource
 
 import net.spartanb312.grunt.process.hierarchy.Hierarchy
-import net.spartanb312.grunt.utils.extensions.isInterface
-import net.spartanb312.grunt.utils.logging.Logger
 import org.objectweb.asm.ClassWriter
 
+/**
+ * Class writer taking common super classes from the hierarchy
+ * No class is loaded, results are memoized by the hierarchy across dump workers.
+ * Frames merging a missing class can't be computed, that aborts the dump with a MissingClassException.
+ */
 class ClassDumper(
-    private val resourceCache: ResourceCache,
     private val hierarchy: Hierarchy,
     useComputeMax: Boolean = false
 ) : ClassWriter(if (useComputeMax) COMPUTE_MAXS else COMPUTE_FRAMES) {
 
     override fun getCommonSuperClass(type1: String, type2: String): String {
-        return when {
-            type1 == "java/lang/Object" -> type1
-            type2 == "java/lang/Object" -> type2
-            hierarchy.isSubType(type1, type2) -> type2
-            hierarchy.isSubType(type2, type1) -> type1
-            else -> {
-                val clazz1 = resourceCache.getClassNode(type1)
-                val clazz2 = resourceCache.getClassNode(type2)
-                if (clazz1?.isInterface == true && clazz2?.isInterface == true) return "java/lang/Object"
-                try {
-                    super.getCommonSuperClass(type1, type2)
-                } catch (exception: Exception) {
-                    try {
-                        Class.forName(type1)
-                    } catch (ignore: Exception) {
-                        if (clazz1 == null) {
-                            Logger.error("Missing dependency $type1")
-                            throw Exception("Can't find common super class due to missing $type1")
-                        }
-                    }
-                    try {
-                        Class.forName(type2)
-                    } catch (ignore: Exception) {
-                        if (clazz2 == null) {
-                            Logger.error("Missing dependency $type2")
-                            throw Exception("Can't find common super class due to missing $type2")
-                        }
-                    }
-                    "java/lang/Object"
-                }
-            }
+        if (type1 == "java/lang/Object" || type2 == "java/lang/Object") return "java/lang/Object"
+        return hierarchy.getCommonSuperClass(type1, type2) ?: run {
+            throw MissingClassException(if (hierarchy.getClassInfo(type1).isBroken) type1 else type2)
         }
     }
 
-}
\ No newline at end of file
+    class MissingClassException(val missing: String) : Exception("Can't find common super class due to missing $missing")
+
+}
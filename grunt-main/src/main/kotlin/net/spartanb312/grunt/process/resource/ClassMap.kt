@@ -0,0 +1,197 @@
+package net.spartanb312.grunt.process.resource
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap
+import it.unimi.dsi.fastutil.objects.ObjectSet
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet
+import org.objectweb.asm.tree.ClassNode
+import java.util.function.BiFunction
+import java.util.function.Function
+
+/**
+ * Class map with a modification counter and a journal of the recent changes
+ * Lets cached views tell whether they are outdated and catch up without rescanning.
+ */
+class ClassMap : Object2ObjectOpenHashMap<String, ClassNode>() {
+
+    /**
+     * A class replaced, added (removed is null) or dropped (added is null)
+     */
+    class Change(val removed: ClassNode?, val added: ClassNode?)
+
+    @Volatile
+    var version = 0
+        private set
+
+    // Iterator removals don't go through remove(), size covers them
+    val stamp get() = (version.toLong() shl 32) or size.toLong()
+
+    // Changes from journalStart until version, dropped once it gets longer than the map
+    private val journal = ArrayList<Change>()
+    private var journalStart = 0
+    private var trackedSize = 0
+
+    // Kotlin's entries bridge would loop through the default entrySet()
+    @Suppress("UNCHECKED_CAST")
+    override val entries: ObjectSet<MutableMap.MutableEntry<String, ClassNode>>
+        get() = object2ObjectEntrySet() as ObjectSet<MutableMap.MutableEntry<String, ClassNode>>
+
+    override fun put(key: String, value: ClassNode): ClassNode? = super.put(key, value).also { changed(it, value) }
+
+    override fun remove(key: String): ClassNode? = super.remove(key).also { if (it != null) changed(it, null) }
+
+    override fun remove(key: String, value: ClassNode): Boolean =
+        super.remove(key, value).also { if (it) changed(value, null) }
+
+    override fun putIfAbsent(key: String, value: ClassNode): ClassNode? =
+        super.putIfAbsent(key, value).also { if (it == null) changed(null, value) }
+
+    override fun replace(key: String, value: ClassNode): ClassNode? =
+        super.replace(key, value).also { if (it != null) changed(it, value) }
+
+    override fun replace(key: String, oldValue: ClassNode, newValue: ClassNode): Boolean =
+        super.replace(key, oldValue, newValue).also { if (it) changed(oldValue, newValue) }
+
+    override fun putAll(from: Map<out String, ClassNode>) = from.forEach { (key, value) -> put(key, value) }
+
+    // Same as the Map defaults, kept here so every change goes through put and remove whatever fastutil overrides
+    override fun compute(
+        key: String,
+        remappingFunction: BiFunction<in String, in ClassNode?, out ClassNode?>
+    ): ClassNode? = update(key, remappingFunction.apply(key, get(key)))
+
+    override fun computeIfAbsent(key: String, mappingFunction: Function<in String, out ClassNode?>): ClassNode? =
+        get(key) ?: mappingFunction.apply(key)?.also { put(key, it) }
+
+    override fun computeIfPresent(
+        key: String,
+        remappingFunction: BiFunction<in String, in ClassNode, out ClassNode?>
+    ): ClassNode? = get(key)?.let { update(key, remappingFunction.apply(key, it)) }
+
+    override fun merge(
+        key: String,
+        value: ClassNode,
+        remappingFunction: BiFunction<in ClassNode, in ClassNode, out ClassNode?>
+    ): ClassNode? = update(key, get(key)?.let { remappingFunction.apply(it, value) } ?: value)
+
+    override fun clear() {
+        super.clear()
+        synchronized(journal) {
+            journal.clear()
+            trackedSize = 0
+            version++
+            journalStart = version
+        }
+    }
+
+    /**
+     * Changes made after the given version in order, null if the journal doesn't reach back that far
+     */
+    fun changesSince(since: Int): List<Change>? = synchronized(journal) {
+        if (trackedSize != size) {
+            // Removed through an iterator, start over from here
+            journal.clear()
+            trackedSize = size
+            version++
+            journalStart = version
+        }
+        if (since < journalStart || since > version) null
+        else journal.subList(since - journalStart, journal.size).toList()
+    }
+
+    private fun update(key: String, value: ClassNode?): ClassNode? {
+        if (value == null) remove(key) else put(key, value)
+        return value
+    }
+
+    private fun changed(removed: ClassNode?, added: ClassNode?) = synchronized(journal) {
+        if (removed == null) trackedSize++
+        if (added == null) trackedSize--
+        if (journal.size > size) {
+            journalStart += journal.size
+            journal.clear()
+        }
+        journal.add(Change(removed, added))
+        version++
+    }
+
+}
+
+/**
+ * Immutable snapshot of classes with O(1) membership
+ */
+class ClassView(private val list: List<ClassNode>) : List<ClassNode> by list {
+
+    private val set = ReferenceOpenHashSet(list)
+
+    override fun contains(element: ClassNode): Boolean = set.contains(element)
+
+    override fun containsAll(elements: Collection<ClassNode>): Boolean = elements.all { set.contains(it) }
+
+}
+
+/**
+ * Lazily maintained ClassView of the classes passing the filter, followed by the extra classes
+ * Changes of the class map are applied as a delta, the filter only runs on added classes.
+ * A different key rebuilds the view from scratch.
+ */
+class ClassViewCache(
+    private val classes: ClassMap,
+    private val key: () -> List<Any?>,
+    private val extra: () -> Collection<ClassNode> = { emptyList() },
+    private val filter: (ClassNode) -> Boolean = { true }
+) {
+
+    // The last extraSize classes of the view are the extra ones
+    private class Cached(val key: List<Any?>, val stamp: Long, val view: ClassView, val extraSize: Int)
+
+    @Volatile
+    private var cached: Cached? = null
+
+    fun get(): ClassView {
+        val key = key()
+        val cached = cached
+        val (view, extraSize) = when {
+            cached == null || cached.key != key -> build()
+            cached.stamp == classes.stamp -> return cached.view
+            else -> classes.changesSince((cached.stamp ushr 32).toInt())?.let { update(cached, it) } ?: build()
+        }
+        this.cached = Cached(key, classes.stamp, view, extraSize)
+        return view
+    }
+
+    private fun build(): Pair<ClassView, Int> {
+        val extra = extra()
+        val view = ClassView(
+            mutableListOf<ClassNode>().apply {
+                classes.values.filterTo(this, filter)
+                addAll(extra)
+            }
+        )
+        return view to extra.size
+    }
+
+    private fun update(cached: Cached, changes: List<ClassMap.Change>): Pair<ClassView, Int> {
+        val view = cached.view
+        val removed = ReferenceOpenHashSet<ClassNode>()
+        val added = ReferenceOpenHashSet<ClassNode>()
+        val addedOrder = mutableListOf<ClassNode>()
+        for (change in changes) {
+            change.removed?.let { if (!added.remove(it)) removed.add(it) }
+            change.added?.let {
+                // Put back classes that were in the view before
+                if (!removed.remove(it) && filter(it) && added.add(it)) addedOrder.add(it)
+            }
+        }
+        if (removed.isEmpty() && added.isEmpty()) return view to cached.extraSize
+        val classCount = view.size - cached.extraSize
+        val updated = ClassView(
+            mutableListOf<ClassNode>().apply {
+                view.subList(0, classCount).filterTo(this) { it !in removed }
+                addedOrder.filterTo(this) { added.remove(it) }
+                addAll(view.subList(classCount, view.size))
+            }
+        )
+        return updated to cached.extraSize
+    }
+
+}
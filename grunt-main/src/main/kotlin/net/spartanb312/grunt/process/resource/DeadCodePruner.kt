@@ -0,0 +1,129 @@
+package net.spartanb312.grunt.process.resource
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import net.spartanb312.grunt.utils.logging.Logger
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.*
+import org.objectweb.asm.tree.analysis.Analyzer
+import org.objectweb.asm.tree.analysis.AnalyzerException
+import org.objectweb.asm.tree.analysis.BasicInterpreter
+import org.objectweb.asm.tree.analysis.BasicValue
+import org.objectweb.asm.tree.analysis.Frame
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Strips unreachable instructions from methods changed since reading, run ahead of dumping
+ * Unchanged methods are skipped, javac never emits dead code.
+ * The analysis frames also give maxs, classes whose changed methods were all analyzed don't need COMPUTE_MAXS.
+ */
+class DeadCodePruner(private val tracker: MethodTracker) {
+
+    private val knownMaxs = ConcurrentHashMap.newKeySet<ClassNode>() // ClassNode has identity equality
+
+    fun prune(classes: Collection<ClassNode>, parallel: Boolean) {
+        if (!parallel) {
+            classes.forEach { prune(it) }
+            return
+        }
+        runBlocking {
+            classes.forEach { launch(Dispatchers.Default) { prune(it) } }
+        }
+    }
+
+    fun prune(classNode: ClassNode) {
+        var known = true
+        classNode.methods.forEach {
+            if (!tracker.isUnchanged(it) && !prune(classNode.name, it)) known = false
+        }
+        if (known) knownMaxs.add(classNode)
+    }
+
+    /**
+     * Maxs of every method are valid, either as read or from the analysis
+     */
+    fun hasKnownMaxs(classNode: ClassNode) = classNode in knownMaxs
+
+    fun clear() = knownMaxs.clear()
+
+    private fun prune(owner: String, methodNode: MethodNode): Boolean {
+        val instructions = methodNode.instructions
+        if (instructions.size() == 0) return true
+        methodNode.maxLocals = maxOf(methodNode.maxLocals, maxLocals(methodNode))
+        val frames = analyze(owner, methodNode) ?: return false
+
+        var maxStack = 0
+        val insnNodes = instructions.toArray()
+        for (index in frames.indices) {
+            val frame = frames[index]
+            if (frame == null) {
+                if (insnNodes[index] !is LabelNode) instructions.remove(insnNodes[index])
+                continue
+            }
+            var words = 0
+            for (slot in 0 until frame.stackSize) words += frame.getStack(slot).size
+            if (words > maxStack) maxStack = words
+        }
+        methodNode.maxStack = maxStack
+        // A range covering only dead code is empty now and not allowed in the class file
+        methodNode.tryCatchBlocks?.removeIf { !hasCode(it.start, it.end) }
+        return true
+    }
+
+    /**
+     * Stale maxStack is common after transforming, the analysis bound grows until it fits
+     */
+    private fun analyze(owner: String, methodNode: MethodNode): Array<Frame<BasicValue>?>? {
+        val maxStack = methodNode.maxStack
+        var bound = maxOf(maxStack, MIN_STACK_BOUND)
+        while (true) {
+            methodNode.maxStack = bound
+            try {
+                return Analyzer(BasicInterpreter()).analyze(owner, methodNode)
+            } catch (exception: AnalyzerException) {
+                if (exception.cause is IndexOutOfBoundsException && bound < MAX_STACK_BOUND) {
+                    bound = minOf(bound * 2, MAX_STACK_BOUND)
+                    continue
+                }
+                Logger.debug("Skipped dead code removal for $owner.${methodNode.name}${methodNode.desc}: ${exception.message}")
+                methodNode.maxStack = maxStack
+                return null
+            }
+        }
+    }
+
+    private fun maxLocals(methodNode: MethodNode): Int {
+        var maxLocals = Type.getArgumentsAndReturnSizes(methodNode.desc) shr 2
+        if (methodNode.access and Opcodes.ACC_STATIC != 0) maxLocals--
+        methodNode.instructions.forEach {
+            val end = when (it) {
+                is VarInsnNode -> it.`var` + when (it.opcode) {
+                    Opcodes.LLOAD, Opcodes.DLOAD, Opcodes.LSTORE, Opcodes.DSTORE -> 2
+                    else -> 1
+                }
+
+                is IincInsnNode -> it.`var` + 1
+                else -> 0
+            }
+            if (end > maxLocals) maxLocals = end
+        }
+        return maxLocals
+    }
+
+    private fun hasCode(start: LabelNode, end: LabelNode): Boolean {
+        var insn = start.next
+        while (insn != null && insn !== end) {
+            if (insn.opcode != -1) return true
+            insn = insn.next
+        }
+        return false
+    }
+
+    companion object {
+        private const val MIN_STACK_BOUND = 16
+        private const val MAX_STACK_BOUND = 0xFFFF
+    }
+
+}
@@ -0,0 +1,93 @@
+package net.spartanb312.grunt.process.resource
+
+import net.spartanb312.grunt.utils.logging.Logger
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Exploded output, entries are written as plain files without compression
+ * Files are written by a pool, callers only block when the queue is full.
+ */
+class DirectoryWriter(directory: File, threads: Int) : EntryWriter {
+
+    private val root = directory.canonicalFile.toPath()
+    private val writtenNames = ConcurrentHashMap.newKeySet<String>()
+    @Volatile
+    private var failure: Throwable? = null
+
+    private val executor = ThreadPoolExecutor(
+        threads, threads, 0L, TimeUnit.MILLISECONDS, ArrayBlockingQueue(threads * 4), run {
+            val threadNo = AtomicInteger()
+            ThreadFactory { runnable ->
+                Thread(runnable, "DirectoryWriter-${threadNo.incrementAndGet()}").apply { isDaemon = true }
+            }
+        }, ThreadPoolExecutor.CallerRunsPolicy()
+    )
+
+    override fun write(name: String, bytes: ByteArray) = submit(name) { it.writeBytes(bytes) }
+
+    override fun writeRaw(name: String, source: ZipSource, record: ZipSource.Record) = submit(name) {
+        it.writeBytes(source.readBytes(record))
+    }
+
+    override fun writeFile(name: String, file: File) = submit(name) {
+        Files.copy(file.toPath(), it.toPath(), StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    private fun submit(name: String, action: (File) -> Unit) {
+        failure?.let { throw IllegalStateException("Directory writer failed", it) }
+        if (!writtenNames.add(name)) {
+            Logger.warn("Duplicated entry $name, skipped")
+            return
+        }
+        val file = root.resolve(name).normalize()
+        if (!file.startsWith(root) || name.endsWith("/")) {
+            Logger.warn("Invalid entry name $name, skipped")
+            return
+        }
+        executor.execute {
+            if (failure == null) try {
+                val target = file.toFile()
+                target.parentFile?.let { Files.createDirectories(it.toPath()) }
+                action(target)
+            } catch (exception: Throwable) {
+                failure = exception
+            }
+        }
+    }
+
+    override fun close() {
+        executor.shutdown()
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+        failure?.let { throw IllegalStateException("Directory writer failed", it) }
+    }
+
+    companion object {
+        /**
+         * Clear the output directory so classes renamed in the last run don't stay around
+         * Refuses to clear a directory that holds, or lies inside, one of the inputs or libraries.
+         */
+        fun prepare(directory: File, inputs: List<File>) {
+            val target = directory.canonicalFile.toPath()
+            inputs.forEach { input ->
+                val path = input.canonicalFile.toPath()
+                require(!path.startsWith(target) && !target.startsWith(path)) {
+                    "Output directory ${directory.path} overlaps ${input.path}"
+                }
+            }
+            if (directory.exists()) {
+                Logger.warn("Existing output directory will be cleared!")
+                directory.listFiles()?.forEach { it.deleteRecursively() }
+            }
+            directory.mkdirs()
+        }
+    }
+
+}
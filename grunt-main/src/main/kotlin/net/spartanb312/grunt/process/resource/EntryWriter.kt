@@ -0,0 +1,23 @@
+package net.spartanb312.grunt.process.resource
+
+import java.io.File
+
+/**
+ * Output of dumpJar, either a jar or a directory
+ * All functions can be called from multiple threads.
+ */
+interface EntryWriter : AutoCloseable {
+
+    fun write(name: String, bytes: ByteArray)
+
+    /**
+     * Write an entry of another zip, implementations may copy the compressed data as is
+     */
+    fun writeRaw(name: String, source: ZipSource, record: ZipSource.Record)
+
+    /**
+     * Write the content of a file
+     */
+    fun writeFile(name: String, file: File) = write(name, file.readBytes())
+
+}
@@ -0,0 +1,101 @@
+package net.spartanb312.grunt.process.resource
+
+import net.spartanb312.grunt.utils.logging.Logger
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.MethodNode
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Methods hot at runtime, taken from a profile of the input program
+ * A profile is either a JFR recording or lines of "owner.name desc count", both name methods as read.
+ * JFR samples count for the method on top of the stack, so a method is hot by the time spent in its own code.
+ * Samples are resolved right after reading, the top methods by count found in the input are hot.
+ * Remapped copies stay hot.
+ * Transformers skip or lighten hot methods, exclusions and annotations still apply on top.
+ */
+class HotnessProfile {
+
+    private val methods = ConcurrentHashMap.newKeySet<MethodNode>() // MethodNode has identity equality
+
+    fun load(file: File, classes: Map<String, ClassNode>, count: Int) {
+        if (!file.exists()) {
+            Logger.error("Hotness profile ${file.path} doesn't exist")
+            return
+        }
+        val samples = try {
+            if (file.extension.equals("jfr", true)) readRecording(file) else readTable(file)
+        } catch (exception: Exception) {
+            Logger.error("Failed to read hotness profile ${file.path}: ${exception.message}")
+            return
+        } catch (error: LinkageError) {
+            // jdk.jfr is missing before 8u262
+            Logger.error("Reading JFR recordings needs a runtime with jdk.jfr")
+            return
+        }
+        // Samples outside the input, like JDK methods, don't take places of the top methods
+        var missing = 0
+        samples.entries.sortedByDescending { it.value }.asSequence()
+            .mapNotNull { (method, _) ->
+                val owner = method.substringBefore('.')
+                val name = method.substringAfter('.').substringBefore(' ')
+                val desc = method.substringAfter(' ')
+                classes[owner]?.methods?.find { it.name == name && it.desc == desc } ?: null.also { missing++ }
+            }
+            .take(count)
+            .forEach { methods.add(it) }
+        Logger.info("Loaded ${methods.size} hot methods from ${file.name}")
+        if (missing > 0) Logger.warn("Skipped $missing sampled methods which are not in the input")
+    }
+
+    fun isHot(methodNode: MethodNode) = methodNode in methods
+
+    /**
+     * Called with a remapped copy, methods of the copy are hot if the originals were
+     */
+    fun remapped(original: ClassNode, copy: ClassNode) {
+        if (methods.isEmpty() || original.methods.size != copy.methods.size) return
+        for (index in original.methods.indices) {
+            if (methods.remove(original.methods[index])) methods.add(copy.methods[index])
+        }
+    }
+
+    fun clear() = methods.clear()
+
+    /**
+     * Keys are "owner.name desc" with an internal owner name
+     */
+    private fun readTable(file: File): Map<String, Long> {
+        val samples = HashMap<String, Long>()
+        file.forEachLine { line ->
+            if (line.isBlank() || line.startsWith("#")) return@forEachLine
+            val columns = line.split(',', ' ', '\t').filter { it.isNotEmpty() }
+            val count = columns.getOrNull(2)?.toLongOrNull()
+            if (count == null) {
+                Logger.warn("Skipped profile line \"$line\"")
+                return@forEachLine
+            }
+            val owner = columns[0].substringBeforeLast('.').replace('.', '/')
+            val name = columns[0].substringAfterLast('.')
+            samples.merge("$owner.$name ${columns[1]}", count, Long::plus)
+        }
+        return samples
+    }
+
+    private fun readRecording(file: File): Map<String, Long> {
+        val samples = HashMap<String, Long>()
+        jdk.jfr.consumer.RecordingFile(file.toPath()).use { recording ->
+            while (recording.hasMoreEvents()) {
+                val event = recording.readEvent()
+                if (event.eventType.name != "jdk.ExecutionSample") continue
+                val frame = event.stackTrace?.frames?.firstOrNull() ?: continue
+                if (!frame.isJavaFrame) continue
+                val method = frame.method
+                val owner = method.type.name.replace('.', '/')
+                samples.merge("$owner.${method.name} ${method.descriptor}", 1L, Long::plus)
+            }
+        }
+        return samples
+    }
+
+}
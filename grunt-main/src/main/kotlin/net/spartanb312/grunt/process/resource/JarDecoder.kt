@@ -0,0 +1,122 @@
+package net.spartanb312.grunt.process.resource
+
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.tree.ClassNode
+import java.io.File
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.jar.JarEntry
+import java.util.jar.JarFile
+
+/**
+ * Parallel jar decoder
+ * The calling thread inflates entries one by one, worker threads turn class bytes into ClassNodes.
+ * For directories the workers read the class files themselves.
+ * Raw class bytes waiting for a worker are bounded by maxInFlightBytes.
+ */
+class JarDecoder(
+    threads: Int,
+    private val maxInFlightBytes: Int = DEFAULT_IN_FLIGHT_BYTES,
+) : AutoCloseable {
+
+    private val executor: ExecutorService? = if (threads > 1) {
+        val threadNo = AtomicInteger()
+        Executors.newFixedThreadPool(threads) { runnable ->
+            Thread(runnable, "JarDecoder-${threadNo.incrementAndGet()}").apply { isDaemon = true }
+        }
+    } else null
+
+    /**
+     * Decode all entries of the jar.
+     * Resources are delivered on the calling thread while reading.
+     * Classes are delivered on the calling thread in entry order once every worker has finished,
+     * so later duplicated entries override earlier ones just like the sequential reader.
+     * Entries rejected by the filter are neither read nor delivered.
+     */
+    fun decode(
+        jar: JarFile,
+        parsingOptions: Int = ClassReader.EXPAND_FRAMES,
+        filter: (JarEntry) -> Boolean = { true },
+        onResource: ((name: String, bytes: ByteArray) -> Unit)? = null,
+        onClass: (ClassNode) -> Unit
+    ) {
+        val entries = jar.entries().asSequence().filter { !it.isDirectory && filter(it) }.toList()
+        val results = AtomicReferenceArray<ClassNode>(entries.size)
+        val budget = Semaphore(maxInFlightBytes)
+        val pending = mutableListOf<Future<*>>()
+        entries.forEachIndexed { index, entry ->
+            if (entry.name.endsWith(".class")) {
+                val bytes = runCatching { jar.getInputStream(entry).use { it.readBytes() } }.getOrNull()
+                    ?: return@forEachIndexed
+                submit(budget, pending, bytes.size) { results.set(index, parse(bytes, parsingOptions)) }
+            } else if (onResource != null) {
+                onResource(entry.name, jar.getInputStream(entry).use { it.readBytes() })
+            }
+        }
+        pending.forEach { it.get() }
+        for (index in 0 until results.length()) {
+            results.get(index)?.let(onClass)
+        }
+    }
+
+    /**
+     * Decode all class files under the directory, files are read by the workers too.
+     * Classes are delivered on the calling thread ordered by path.
+     */
+    fun decode(
+        directory: File,
+        parsingOptions: Int = ClassReader.EXPAND_FRAMES,
+        onClass: (ClassNode) -> Unit
+    ) {
+        val files = directory.walk().filter { it.isFile && it.name.endsWith(".class") }
+            .sortedBy { it.relativeTo(directory).invariantSeparatorsPath }.toList()
+        val results = AtomicReferenceArray<ClassNode>(files.size)
+        val budget = Semaphore(maxInFlightBytes)
+        val pending = mutableListOf<Future<*>>()
+        files.forEachIndexed { index, file ->
+            submit(budget, pending, file.length().coerceAtMost(Int.MAX_VALUE.toLong()).toInt()) {
+                val bytes = runCatching { file.readBytes() }.getOrNull() ?: return@submit
+                results.set(index, parse(bytes, parsingOptions))
+            }
+        }
+        pending.forEach { it.get() }
+        for (index in 0 until results.length()) {
+            results.get(index)?.let(onClass)
+        }
+    }
+
+    private fun submit(budget: Semaphore, pending: MutableList<Future<*>>, size: Int, task: () -> Unit) {
+        if (executor == null) {
+            task()
+            return
+        }
+        val permits = size.coerceIn(1, maxInFlightBytes)
+        budget.acquire(permits)
+        pending.add(executor.submit {
+            try {
+                task()
+            } finally {
+                budget.release(permits)
+            }
+        })
+    }
+
+    private fun parse(bytes: ByteArray, parsingOptions: Int): ClassNode? = runCatching {
+        ClassNode().apply { ClassReader(bytes).accept(this, parsingOptions) }
+    }.getOrNull()
+
+    override fun close() {
+        executor?.shutdown()
+        executor?.awaitTermination(1, TimeUnit.MINUTES)
+    }
+
+    companion object {
+        const val DEFAULT_IN_FLIGHT_BYTES = 64 * 1024 * 1024
+    }
+
+}
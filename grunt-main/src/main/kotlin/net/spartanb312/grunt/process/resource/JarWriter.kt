@@ -0,0 +1,282 @@
+package net.spartanb312.grunt.process.resource
+
+import net.spartanb312.grunt.utils.logging.Logger
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import kotlin.random.Random
+
+/**
+ * Parallel pre-compressed jar writer
+ * Entries are deflated on the calling threads, each with its own Deflater.
+ * A single sequencer thread appends the compressed bytes with precomputed CRC and sizes,
+ * then the central directory is written on close.
+ */
+class JarWriter(
+    output: OutputStream,
+    private val level: Int = Deflater.BEST_COMPRESSION,
+    private val removeTimestamps: Boolean = false,
+    private val corruptCRC32: Boolean = false,
+    private val comment: String = "",
+    queueSize: Int = Runtime.getRuntime().availableProcessors() * 4
+) : EntryWriter {
+
+    private val output = CountingOutputStream(BufferedOutputStream(output, 1 shl 16))
+    private val queue = ArrayBlockingQueue<Entry>(queueSize)
+    private val centralDirectory = mutableListOf<CentralRecord>()
+    private val writtenNames = mutableSetOf<String>()
+    private val dosTime = if (removeTimestamps) DOS_TIME_1980 else toDosTime(System.currentTimeMillis())
+    @Volatile
+    private var failure: Throwable? = null
+
+    // Deflaters hold native memory until ended
+    private val deflaters = ConcurrentLinkedQueue<Deflater>()
+    private val deflater = ThreadLocal.withInitial { Deflater(level, true).also { deflaters.add(it) } }
+    private val buffer = ThreadLocal.withInitial { ByteArray(1 shl 16) }
+
+    private val sequencer = Thread({
+        while (true) {
+            val entry = queue.take()
+            if (entry === END) break
+            // Keep draining after a failure so producers never block
+            if (failure == null) try {
+                append(entry)
+            } catch (exception: Throwable) {
+                failure = exception
+            }
+        }
+    }, "JarWriter-Sequencer").apply {
+        isDaemon = true
+        start()
+    }
+
+    /**
+     * Deflate on the current thread and hand the result over to the sequencer
+     */
+    override fun write(name: String, bytes: ByteArray) {
+        val crc = CRC32().apply { update(bytes) }.value
+        val compressed = deflate(bytes)
+        enqueue(Entry(name, DEFLATED, crc, compressed.size.toLong(), bytes.size.toLong()) { it.write(compressed) })
+    }
+
+    /**
+     * Copy an entry of another zip as is, the data is streamed on the sequencer
+     */
+    override fun writeRaw(name: String, source: ZipSource, record: ZipSource.Record) {
+        enqueue(Entry(name, record.method, record.crc, record.compressedSize, record.size) {
+            source.transferRaw(record, it)
+        })
+    }
+
+    private fun enqueue(entry: Entry) {
+        failure?.let { throw IllegalStateException("Jar writer failed", it) }
+        queue.put(entry)
+    }
+
+    private fun deflate(bytes: ByteArray): ByteArray {
+        val deflater = deflater.get()
+        val buffer = buffer.get()
+        val result = ByteArrayOutputStream(maxOf(64, bytes.size / 2))
+        deflater.reset()
+        deflater.setInput(bytes)
+        deflater.finish()
+        while (!deflater.finished()) {
+            val count = deflater.deflate(buffer)
+            result.write(buffer, 0, count)
+        }
+        return result.toByteArray()
+    }
+
+    private fun append(entry: Entry) {
+        if (!writtenNames.add(entry.name)) {
+            Logger.warn("Duplicated entry ${entry.name}, skipped")
+            return
+        }
+        val crc = if (corruptCRC32) Random.nextInt(0, Int.MAX_VALUE).toLong() else entry.crc
+        val nameBytes = entry.name.toByteArray(Charsets.UTF_8)
+        val offset = output.count
+        val zip64 = entry.compressedSize >= ZIP64_MAGIC || entry.size >= ZIP64_MAGIC
+        // Local file header
+        output.writeInt(LOCAL_HEADER)
+        output.writeShort(if (zip64) VERSION_ZIP64 else VERSION_DEFAULT)
+        output.writeShort(FLAG_UTF8)
+        output.writeShort(entry.method)
+        output.writeInt(dosTime)
+        output.writeInt(crc.toInt())
+        output.writeInt(if (zip64) ZIP64_MAGIC.toInt() else entry.compressedSize.toInt())
+        output.writeInt(if (zip64) ZIP64_MAGIC.toInt() else entry.size.toInt())
+        output.writeShort(nameBytes.size)
+        output.writeShort(if (zip64) 20 else 0)
+        output.write(nameBytes)
+        if (zip64) {
+            output.writeShort(ZIP64_EXTRA)
+            output.writeShort(16)
+            output.writeLong(entry.size)
+            output.writeLong(entry.compressedSize)
+        }
+        entry.transfer(output)
+        centralDirectory.add(CentralRecord(nameBytes, entry.method, crc, entry.compressedSize, entry.size, offset))
+    }
+
+    override fun close() {
+        if (sequencer.isAlive) {
+            queue.put(END)
+            sequencer.join()
+        }
+        deflaters.forEach { it.end() }
+        deflaters.clear()
+        failure?.let {
+            output.close()
+            throw IllegalStateException("Jar writer failed", it)
+        }
+        val start = output.count
+        centralDirectory.forEach { record ->
+            val zip64 = record.compressedSize >= ZIP64_MAGIC || record.size >= ZIP64_MAGIC
+                    || record.offset >= ZIP64_MAGIC
+            output.writeInt(CENTRAL_HEADER)
+            output.writeShort(if (zip64) VERSION_ZIP64 else VERSION_DEFAULT)
+            output.writeShort(if (zip64) VERSION_ZIP64 else VERSION_DEFAULT)
+            output.writeShort(FLAG_UTF8)
+            output.writeShort(record.method)
+            output.writeInt(dosTime)
+            output.writeInt(record.crc.toInt())
+            output.writeInt(if (zip64) ZIP64_MAGIC.toInt() else record.compressedSize.toInt())
+            output.writeInt(if (zip64) ZIP64_MAGIC.toInt() else record.size.toInt())
+            output.writeShort(record.name.size)
+            output.writeShort(if (zip64) 28 else 0)
+            output.writeShort(0) // comment
+            output.writeShort(0) // disk
+            output.writeShort(0) // internal attributes
+            output.writeInt(0) // external attributes
+            output.writeInt(if (zip64) ZIP64_MAGIC.toInt() else record.offset.toInt())
+            output.write(record.name)
+            if (zip64) {
+                output.writeShort(ZIP64_EXTRA)
+                output.writeShort(24)
+                output.writeLong(record.size)
+                output.writeLong(record.compressedSize)
+                output.writeLong(record.offset)
+            }
+        }
+        val end = output.count
+        val count = centralDirectory.size
+        val zip64 = count >= 0xFFFF || start >= ZIP64_MAGIC || end - start >= ZIP64_MAGIC
+        if (zip64) {
+            // Zip64 end of central directory record and locator
+            output.writeInt(ZIP64_END)
+            output.writeLong(44)
+            output.writeShort(VERSION_ZIP64)
+            output.writeShort(VERSION_ZIP64)
+            output.writeInt(0)
+            output.writeInt(0)
+            output.writeLong(count.toLong())
+            output.writeLong(count.toLong())
+            output.writeLong(end - start)
+            output.writeLong(start)
+            output.writeInt(ZIP64_LOCATOR)
+            output.writeInt(0)
+            output.writeLong(end)
+            output.writeInt(1)
+        }
+        val commentBytes = comment.toByteArray(Charsets.UTF_8)
+        output.writeInt(END_HEADER)
+        output.writeShort(0)
+        output.writeShort(0)
+        output.writeShort(if (zip64) 0xFFFF else count)
+        output.writeShort(if (zip64) 0xFFFF else count)
+        output.writeInt(if (zip64) ZIP64_MAGIC.toInt() else (end - start).toInt())
+        output.writeInt(if (zip64) ZIP64_MAGIC.toInt() else start.toInt())
+        output.writeShort(commentBytes.size)
+        output.write(commentBytes)
+        output.close()
+    }
+
+    private class Entry(
+        val name: String,
+        val method: Int,
+        val crc: Long,
+        val compressedSize: Long,
+        val size: Long,
+        val transfer: (OutputStream) -> Unit
+    )
+
+    private class CentralRecord(
+        val name: ByteArray,
+        val method: Int,
+        val crc: Long,
+        val compressedSize: Long,
+        val size: Long,
+        val offset: Long
+    )
+
+    // Little endian output, offsets are counted from the first byte written by this writer
+    private class CountingOutputStream(private val output: OutputStream) : OutputStream() {
+        var count = 0L
+            private set
+
+        override fun write(b: Int) {
+            output.write(b)
+            count++
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            output.write(b, off, len)
+            count += len
+        }
+
+        fun writeShort(value: Int) {
+            write(value and 0xFF)
+            write((value ushr 8) and 0xFF)
+        }
+
+        fun writeInt(value: Int) {
+            writeShort(value and 0xFFFF)
+            writeShort((value ushr 16) and 0xFFFF)
+        }
+
+        fun writeLong(value: Long) {
+            writeInt(value.toInt())
+            writeInt((value ushr 32).toInt())
+        }
+
+        override fun flush() = output.flush()
+
+        override fun close() = output.close()
+    }
+
+    companion object {
+        const val DEFLATED = 8
+
+        private const val LOCAL_HEADER = 0x04034b50
+        private const val CENTRAL_HEADER = 0x02014b50
+        private const val END_HEADER = 0x06054b50
+        private const val ZIP64_END = 0x06064b50
+        private const val ZIP64_LOCATOR = 0x07064b50
+        private const val ZIP64_EXTRA = 0x0001
+        private const val ZIP64_MAGIC = 0xFFFFFFFFL
+        private const val VERSION_DEFAULT = 20
+        private const val VERSION_ZIP64 = 45
+        private const val FLAG_UTF8 = 0x800
+        private const val DOS_TIME_1980 = (1 shl 21) or (1 shl 16)
+
+        private val END = Entry("", 0, 0, 0, 0) {}
+
+        private fun toDosTime(time: Long): Int {
+            val calendar = Calendar.getInstance().apply { timeInMillis = time }
+            val year = calendar.get(Calendar.YEAR)
+            if (year < 1980) return DOS_TIME_1980
+            return ((year - 1980) shl 25) or
+                    ((calendar.get(Calendar.MONTH) + 1) shl 21) or
+                    (calendar.get(Calendar.DAY_OF_MONTH) shl 16) or
+                    (calendar.get(Calendar.HOUR_OF_DAY) shl 11) or
+                    (calendar.get(Calendar.MINUTE) shl 5) or
+                    (calendar.get(Calendar.SECOND) shr 1)
+        }
+    }
+
+}
@@ -0,0 +1,358 @@
+package net.spartanb312.grunt.process.resource
+
+import it.unimi.dsi.fastutil.ints.IntArrayList
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap
+import it.unimi.dsi.fastutil.objects.ObjectArrayList
+import net.spartanb312.grunt.utils.logging.Logger
+import org.objectweb.asm.tree.AnnotationNode
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.FieldNode
+import org.objectweb.asm.tree.InnerClassNode
+import org.objectweb.asm.tree.MethodNode
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.jar.JarFile
+
+/**
+ * Persistent library metadata cache
+ * Stores class headers and member signatures of each library jar in a binary snapshot.
+ * A snapshot is reused when path and size match and either mtime or content hash matches.
+ */
+class LibraryCache(private val directory: File) {
+
+    fun load(file: File, jar: JarFile): LibrarySnapshot? {
+        val snapshotFile = snapshotFile(file)
+        if (!snapshotFile.exists()) return null
+        return runCatching {
+            val snapshot = LibrarySnapshot.map(snapshotFile)
+            when {
+                snapshot.size != file.length() -> null
+                snapshot.lastModified == file.lastModified() -> snapshot
+                snapshot.contentHash == contentHash(jar) -> snapshot.also { touch(snapshotFile, file) }
+                else -> null
+            }
+        }.onFailure {
+            Logger.warn("Failed to read library cache ${snapshotFile.name}: ${it.message}")
+        }.getOrNull()
+    }
+
+    // Same content under a new mtime, store it so later runs match without hashing
+    private fun touch(snapshotFile: File, file: File) {
+        runCatching {
+            LibrarySnapshot.updateLastModified(snapshotFile, file.lastModified())
+        }.onFailure {
+            Logger.warn("Failed to update library cache ${snapshotFile.name}: ${it.message}")
+        }
+    }
+
+    fun store(file: File, jar: JarFile, classes: Collection<ClassNode>): LibrarySnapshot? {
+        val snapshotFile = snapshotFile(file)
+        return runCatching {
+            directory.mkdirs()
+            val temp = File.createTempFile(snapshotFile.nameWithoutExtension, ".tmp", directory)
+            LibrarySnapshot.write(temp, file.length(), file.lastModified(), contentHash(jar), classes)
+            try {
+                Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE)
+            } catch (ignore: Exception) {
+                Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            }
+            LibrarySnapshot.map(snapshotFile)
+        }.onFailure {
+            Logger.warn("Failed to write library cache ${snapshotFile.name}: ${it.message}")
+        }.getOrNull()
+    }
+
+    private fun snapshotFile(file: File): File {
+        val digest = MessageDigest.getInstance("SHA-1").digest(file.canonicalPath.toByteArray())
+        return File(directory, digest.joinToString("") { "%02x".format(it) } + ".bin")
+    }
+
+    // Hash of the central directory (names, crc and sizes), no entry gets inflated
+    private fun contentHash(jar: JarFile): Long {
+        val digest = MessageDigest.getInstance("SHA-1")
+        jar.entries().asSequence().forEach {
+            digest.update(it.name.toByteArray())
+            digest.update(ByteBuffer.allocate(16).putLong(it.crc).putLong(it.size).array())
+        }
+        return ByteBuffer.wrap(digest.digest()).long
+    }
+
+}
+
+/**
+ * Memory mapped library snapshot
+ * Layout: header, string pool, class table (name, offset), class records.
+ * Skeleton ClassNodes are decoded lazily from the mapped buffer.
+ * Skeletons keep what a SKIP_CODE read gives except annotation values and record components,
+ * annotations only come with their descriptors.
+ */
+class LibrarySnapshot private constructor(private val buffer: ByteBuffer) {
+
+    val size: Long
+    val lastModified: Long
+    val contentHash: Long
+    private val stringOffsets: IntArray
+    private val classOffsets = Object2IntOpenHashMap<String>().apply { defaultReturnValue(-1) }
+
+    val names: Set<String> get() = classOffsets.keys
+
+    init {
+        require(buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION) { "Incompatible snapshot" }
+        size = buffer.getLong(8)
+        lastModified = buffer.getLong(16)
+        contentHash = buffer.getLong(24)
+        var position = 32
+        val stringCount = buffer.getInt(position)
+        position += 4
+        stringOffsets = IntArray(stringCount)
+        for (index in 0 until stringCount) {
+            stringOffsets[index] = position
+            position += 4 + buffer.getInt(position) * 2
+        }
+        val classCount = buffer.getInt(position)
+        position += 4
+        repeat(classCount) {
+            classOffsets[string(buffer.getInt(position))] = buffer.getInt(position + 4)
+            position += 8
+        }
+    }
+
+    fun read(name: String): ClassNode? {
+        val offset = classOffsets.getInt(name)
+        if (offset == -1) return null
+        val reader = Reader(offset)
+        return ClassNode().apply {
+            this.name = name
+            version = reader.int()
+            access = reader.int()
+            superName = reader.stringOrNull()
+            signature = reader.stringOrNull()
+            interfaces = reader.strings()
+            outerClass = reader.stringOrNull()
+            outerMethod = reader.stringOrNull()
+            outerMethodDesc = reader.stringOrNull()
+            nestHostClass = reader.stringOrNull()
+            nestMembers = reader.strings().ifEmpty { null }
+            permittedSubclasses = reader.strings().ifEmpty { null }
+            repeat(reader.int()) {
+                innerClasses.add(InnerClassNode(reader.string(), reader.stringOrNull(), reader.stringOrNull(), reader.int()))
+            }
+            reader.annotations().let { (visible, invisible) ->
+                visibleAnnotations = visible
+                invisibleAnnotations = invisible
+            }
+            repeat(reader.int()) {
+                val access = reader.int()
+                val fieldName = reader.string()
+                val desc = reader.string()
+                val signature = reader.stringOrNull()
+                val field = FieldNode(access, fieldName, desc, signature, reader.value())
+                reader.annotations().let { (visible, invisible) ->
+                    field.visibleAnnotations = visible
+                    field.invisibleAnnotations = invisible
+                }
+                fields.add(field)
+            }
+            repeat(reader.int()) {
+                val access = reader.int()
+                val methodName = reader.string()
+                val desc = reader.string()
+                val signature = reader.stringOrNull()
+                val exceptions = reader.strings()
+                val method = MethodNode(access, methodName, desc, signature, exceptions.toTypedArray())
+                reader.annotations().let { (visible, invisible) ->
+                    method.visibleAnnotations = visible
+                    method.invisibleAnnotations = invisible
+                }
+                methods.add(method)
+            }
+        }
+    }
+
+    private fun string(index: Int): String {
+        val offset = stringOffsets[index]
+        val length = buffer.getInt(offset)
+        val chars = CharArray(length)
+        for (i in 0 until length) chars[i] = buffer.getChar(offset + 4 + i * 2)
+        return String(chars)
+    }
+
+    private inner class Reader(private var position: Int) {
+        fun int(): Int = buffer.getInt(position).also { position += 4 }
+        fun string(): String = string(int())
+        fun stringOrNull(): String? = int().let { if (it == -1) null else string(it) }
+        fun strings(): MutableList<String> = MutableList(int()) { string() }
+        fun long(): Long = (int().toLong() shl 32) or (int().toLong() and 0xFFFFFFFFL)
+        fun value(): Any? = when (int()) {
+            VALUE_INT -> int()
+            VALUE_LONG -> long()
+            VALUE_FLOAT -> Float.fromBits(int())
+            VALUE_DOUBLE -> Double.fromBits(long())
+            VALUE_STRING -> string()
+            else -> null
+        }
+        fun annotations(): Pair<MutableList<AnnotationNode>?, MutableList<AnnotationNode>?> {
+            val visible = strings().map { AnnotationNode(it) }
+            val invisible = strings().map { AnnotationNode(it) }
+            return visible.ifEmpty { null }?.toMutableList() to invisible.ifEmpty { null }?.toMutableList()
+        }
+    }
+
+    companion object {
+        private const val MAGIC = 0x47524C43 // GRLC
+        private const val VERSION = 2
+
+        private const val VALUE_NONE = 0
+        private const val VALUE_INT = 1
+        private const val VALUE_LONG = 2
+        private const val VALUE_FLOAT = 3
+        private const val VALUE_DOUBLE = 4
+        private const val VALUE_STRING = 5
+
+        fun map(file: File): LibrarySnapshot {
+            return FileChannel.open(file.toPath(), StandardOpenOption.READ).use {
+                LibrarySnapshot(it.map(FileChannel.MapMode.READ_ONLY, 0, it.size()))
+            }
+        }
+
+        fun updateLastModified(file: File, lastModified: Long) {
+            FileChannel.open(file.toPath(), StandardOpenOption.WRITE).use {
+                val buffer = ByteBuffer.allocate(8).putLong(0, lastModified)
+                while (buffer.hasRemaining()) it.write(buffer, 16L + buffer.position())
+            }
+        }
+
+        fun write(file: File, size: Long, lastModified: Long, contentHash: Long, classes: Collection<ClassNode>) {
+            val pool = Object2IntOpenHashMap<String>().apply { defaultReturnValue(-1) }
+            val strings = ObjectArrayList<String>()
+            fun index(string: String?): Int {
+                if (string == null) return -1
+                val exist = pool.getInt(string)
+                if (exist != -1) return exist
+                pool[string] = strings.size
+                strings.add(string)
+                return strings.size - 1
+            }
+
+            // Encode records first to complete the string pool
+            val records = classes.map { classNode ->
+                val record = IntArrayList()
+                fun annotations(visible: List<AnnotationNode>?, invisible: List<AnnotationNode>?) {
+                    record.add(visible?.size ?: 0)
+                    visible?.forEach { record.add(index(it.desc)) }
+                    record.add(invisible?.size ?: 0)
+                    invisible?.forEach { record.add(index(it.desc)) }
+                }
+                fun strings(strings: List<String>?) {
+                    record.add(strings?.size ?: 0)
+                    strings?.forEach { record.add(index(it)) }
+                }
+                fun long(value: Long) {
+                    record.add((value ushr 32).toInt())
+                    record.add(value.toInt())
+                }
+                fun value(value: Any?) {
+                    when (value) {
+                        is Int -> {
+                            record.add(VALUE_INT)
+                            record.add(value)
+                        }
+
+                        is Long -> {
+                            record.add(VALUE_LONG)
+                            long(value)
+                        }
+
+                        is Float -> {
+                            record.add(VALUE_FLOAT)
+                            record.add(value.toRawBits())
+                        }
+
+                        is Double -> {
+                            record.add(VALUE_DOUBLE)
+                            long(value.toRawBits())
+                        }
+
+                        is String -> {
+                            record.add(VALUE_STRING)
+                            record.add(index(value))
+                        }
+
+                        else -> record.add(VALUE_NONE)
+                    }
+                }
+                record.add(classNode.version)
+                record.add(classNode.access)
+                record.add(index(classNode.superName))
+                record.add(index(classNode.signature))
+                strings(classNode.interfaces)
+                record.add(index(classNode.outerClass))
+                record.add(index(classNode.outerMethod))
+                record.add(index(classNode.outerMethodDesc))
+                record.add(index(classNode.nestHostClass))
+                strings(classNode.nestMembers)
+                strings(classNode.permittedSubclasses)
+                record.add(classNode.innerClasses.size)
+                classNode.innerClasses.forEach {
+                    record.add(index(it.name))
+                    record.add(index(it.outerName))
+                    record.add(index(it.innerName))
+                    record.add(it.access)
+                }
+                annotations(classNode.visibleAnnotations, classNode.invisibleAnnotations)
+                record.add(classNode.fields.size)
+                classNode.fields.forEach {
+                    record.add(it.access)
+                    record.add(index(it.name))
+                    record.add(index(it.desc))
+                    record.add(index(it.signature))
+                    value(it.value)
+                    annotations(it.visibleAnnotations, it.invisibleAnnotations)
+                }
+                record.add(classNode.methods.size)
+                classNode.methods.forEach {
+                    record.add(it.access)
+                    record.add(index(it.name))
+                    record.add(index(it.desc))
+                    record.add(index(it.signature))
+                    strings(it.exceptions)
+                    annotations(it.visibleAnnotations, it.invisibleAnnotations)
+                }
+                index(classNode.name) to record
+            }
+
+            DataOutputStream(BufferedOutputStream(file.outputStream())).use { output ->
+                output.writeInt(MAGIC)
+                output.writeInt(VERSION)
+                output.writeLong(size)
+                output.writeLong(lastModified)
+                output.writeLong(contentHash)
+                var position = 36
+                output.writeInt(strings.size)
+                strings.forEach {
+                    output.writeInt(it.length)
+                    output.writeChars(it)
+                    position += 4 + it.length * 2
+                }
+                output.writeInt(records.size)
+                position += 4 + records.size * 8
+                records.forEach { (name, record) ->
+                    output.writeInt(name)
+                    output.writeInt(position)
+                    position += record.size * 4
+                }
+                records.forEach { (_, record) ->
+                    for (i in 0 until record.size) output.writeInt(record.getInt(i))
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package net.spartanb312.grunt.process.resource
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap
+import it.unimi.dsi.fastutil.objects.ObjectArrayList
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.tree.ClassNode
+import java.io.Closeable
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.jar.JarFile
+
+/**
+ * Library class index
+ * Only records which jar contains each class while scanning.
+ * Skeletons (no code, no debug info) are parsed on demand and cached,
+ * full class bodies are parsed on demand and never cached.
+ * With a LibraryCache, skeletons are decoded from the snapshot instead of the jar.
+ * Indexed jars stay open until closed.
+ */
+class LibraryIndex(private val cache: LibraryCache? = null) : Closeable {
+
+    private val jars = ObjectArrayList<JarFile>()
+    private val snapshots = ObjectArrayList<LibrarySnapshot?>()
+    private val locations = Object2IntOpenHashMap<String>().apply { defaultReturnValue(-1) }
+    private val skeletons = ConcurrentHashMap<String, ClassNode>()
+
+    // Bumped whenever a jar is indexed or a class outside the indexed jars is added
+    private val versionCounter = AtomicInteger()
+    val version get() = versionCounter.get()
+
+    private class Names(val version: Int, val names: Set<String>)
+
+    @Volatile
+    private var cachedNames: Names? = null
+
+    val names: Set<String>
+        get() {
+            val current = version
+            cachedNames?.let { if (it.version == current) return it.names }
+            return (locations.keys + skeletons.keys).also { cachedNames = Names(current, it) }
+        }
+    val size get() = names.size
+
+    /**
+     * All library skeletons, parsing the ones not touched yet
+     */
+    val values: List<ClassNode> get() = names.mapNotNull { get(it) }
+
+    fun index(file: File, decoder: JarDecoder) {
+        val jar = JarFile(file)
+        val jarIndex = jars.size
+        jars.add(jar)
+        val snapshot = cache?.let { it.load(file, jar) ?: buildSnapshot(file, jar, decoder) }
+        snapshots.add(snapshot)
+        if (snapshot != null) snapshot.names.forEach { locations[it] = jarIndex }
+        else jar.entries().asSequence().forEach {
+            if (it.isDirectory || !it.name.endsWith(".class")) return@forEach
+            if (it.name.startsWith(VERSIONED_PREFIX)) return@forEach
+            locations[it.name.removeSuffix(".class")] = jarIndex
+        }
+        versionCounter.incrementAndGet()
+    }
+
+    operator fun contains(name: String): Boolean = locations.containsKey(name) || skeletons.containsKey(name)
+
+    /**
+     * Class skeleton with name, access, hierarchy and member signatures only
+     */
+    operator fun get(name: String): ClassNode? {
+        skeletons[name]?.let { return it }
+        if (!locations.containsKey(name)) return null
+        val classNode = snapshots[locations.getInt(name)]?.read(name) ?: read(name, SKELETON_OPTIONS) ?: return null
+        return skeletons.putIfAbsent(name, classNode) ?: classNode
+    }
+
+    operator fun set(name: String, classNode: ClassNode) {
+        skeletons[name] = classNode
+        versionCounter.incrementAndGet()
+    }
+
+    /**
+     * Cache the class unless another thread did first, returns the cached one
+     */
+    fun putIfAbsent(name: String, classNode: ClassNode): ClassNode {
+        return skeletons.putIfAbsent(name, classNode) ?: classNode.also { versionCounter.incrementAndGet() }
+    }
+
+    /**
+     * Class with method bodies and expanded frames, parsed again on every call
+     */
+    fun getFull(name: String): ClassNode? {
+        return if (name in this) read(name, ClassReader.EXPAND_FRAMES) else null
+    }
+
+    fun fullClasses(): Sequence<ClassNode> = names.asSequence().mapNotNull { getFull(it) }
+
+    override fun close() {
+        jars.forEach { it.close() }
+    }
+
+    private fun buildSnapshot(file: File, jar: JarFile, decoder: JarDecoder): LibrarySnapshot? {
+        val classNodes = ObjectArrayList<ClassNode>()
+        // Same classes as the uncached index, versioned entries would override the base ones
+        decoder.decode(jar, SKELETON_OPTIONS, { !it.name.startsWith(VERSIONED_PREFIX) }) { classNodes.add(it) }
+        return cache?.store(file, jar, classNodes)
+    }
+
+    // Classes resolved from the runtime are not indexed and get read from the system class loader
+    private fun read(name: String, parsingOptions: Int): ClassNode? {
+        val jarIndex = locations.getInt(name)
+        return runCatching {
+            val reader = if (jarIndex == -1) ClassReader(name) else {
+                val jar = jars[jarIndex]
+                jar.getInputStream(jar.getJarEntry("$name.class")).use { ClassReader(it) }
+            }
+            ClassNode().apply { reader.accept(this, parsingOptions) }
+        }.getOrNull()
+    }
+
+    companion object {
+        const val SKELETON_OPTIONS = ClassReader.SKIP_CODE or ClassReader.SKIP_DEBUG
+        private const val VERSIONED_PREFIX = "META-INF/versions/"
+    }
+
+}
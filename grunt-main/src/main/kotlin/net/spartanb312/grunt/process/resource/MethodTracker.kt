@@ -0,0 +1,154 @@
+package net.spartanb312.grunt.process.resource
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.objectweb.asm.tree.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Content hashes of methods as read
+ * Everything the frames depend on is hashed: access, descriptor, maxs, instructions, frames and try catch blocks.
+ * A method whose hash still matches at dump time is unchanged, so its frames and maxs are still valid.
+ * Remapped copies inherit the state of their original, remapping keeps frames valid.
+ * Transformers removing supertypes of existing classes would invalidate frames of unchanged methods.
+ */
+class MethodTracker {
+
+    private val hashes = ConcurrentHashMap<MethodNode, Long>() // MethodNode has identity equality
+
+    fun record(classes: Collection<ClassNode>, parallel: Boolean) {
+        if (!parallel) {
+            classes.forEach { record(it) }
+            return
+        }
+        runBlocking {
+            classes.forEach { launch(Dispatchers.Default) { record(it) } }
+        }
+    }
+
+    fun record(classNode: ClassNode) {
+        classNode.methods.forEach { hashes[it] = hash(it) }
+    }
+
+    fun isUnchanged(methodNode: MethodNode): Boolean {
+        val recorded = hashes[methodNode] ?: return false
+        return recorded == hash(methodNode)
+    }
+
+    /**
+     * Called with a remapped copy, the copy is unchanged if the original was
+     */
+    fun remapped(original: ClassNode, copy: ClassNode) {
+        if (original.methods.size != copy.methods.size) return
+        for (index in original.methods.indices) {
+            val method = original.methods[index]
+            if (isUnchanged(method)) hashes[copy.methods[index]] = hash(copy.methods[index])
+            hashes.remove(method)
+        }
+    }
+
+    fun clear() = hashes.clear()
+
+    private fun hash(methodNode: MethodNode): Long {
+        // Labels are identified by the number of opcodes before them, debug only nodes don't matter
+        val instructions = methodNode.instructions
+        val opcodesBefore = IntArray(instructions.size())
+        var position = 0
+        var index = 0
+        instructions.forEach {
+            opcodesBefore[index++] = position
+            if (it.opcode != -1) position++
+        }
+        fun label(node: LabelNode?): Int {
+            if (node == null) return -1
+            val labelIndex = instructions.indexOf(node)
+            return if (labelIndex in opcodesBefore.indices && instructions[labelIndex] === node) opcodesBefore[labelIndex] else -2
+        }
+        fun value(value: Any?) = if (value is LabelNode) label(value) else value.hashCode()
+
+        var hash = HASH_SEED
+        fun mix(value: Int) {
+            hash = (hash xor value.toLong()) * HASH_PRIME
+        }
+        mix(methodNode.access)
+        mix(methodNode.desc.hashCode())
+        mix(methodNode.maxStack)
+        mix(methodNode.maxLocals)
+        methodNode.instructions.forEach { insn ->
+            if (insn is LineNumberNode || insn is LabelNode) return@forEach
+            mix(insn.opcode)
+            mix(insn.type)
+            when (insn) {
+                is IntInsnNode -> mix(insn.operand)
+                is VarInsnNode -> mix(insn.`var`)
+                is TypeInsnNode -> mix(insn.desc.hashCode())
+                is FieldInsnNode -> {
+                    mix(insn.owner.hashCode())
+                    mix(insn.name.hashCode())
+                    mix(insn.desc.hashCode())
+                }
+
+                is MethodInsnNode -> {
+                    mix(insn.owner.hashCode())
+                    mix(insn.name.hashCode())
+                    mix(insn.desc.hashCode())
+                    mix(if (insn.itf) 1 else 0)
+                }
+
+                is InvokeDynamicInsnNode -> {
+                    mix(insn.name.hashCode())
+                    mix(insn.desc.hashCode())
+                    mix(insn.bsm.hashCode())
+                    insn.bsmArgs.forEach { mix(it.hashCode()) }
+                }
+
+                is JumpInsnNode -> mix(label(insn.label))
+                is LdcInsnNode -> mix(insn.cst.hashCode())
+                is IincInsnNode -> {
+                    mix(insn.`var`)
+                    mix(insn.incr)
+                }
+
+                is TableSwitchInsnNode -> {
+                    mix(insn.min)
+                    mix(insn.max)
+                    mix(label(insn.dflt))
+                    insn.labels.forEach { mix(label(it)) }
+                }
+
+                is LookupSwitchInsnNode -> {
+                    mix(label(insn.dflt))
+                    insn.keys.forEach { mix(it) }
+                    insn.labels.forEach { mix(label(it)) }
+                }
+
+                is MultiANewArrayInsnNode -> {
+                    mix(insn.desc.hashCode())
+                    mix(insn.dims)
+                }
+
+                is FrameNode -> {
+                    mix(insn.type)
+                    mix(insn.local?.size ?: -1)
+                    insn.local?.forEach { mix(value(it)) }
+                    mix(insn.stack?.size ?: -1)
+                    insn.stack?.forEach { mix(value(it)) }
+                }
+            }
+        }
+        methodNode.tryCatchBlocks?.forEach {
+            mix(label(it.start))
+            mix(label(it.end))
+            mix(label(it.handler))
+            mix(it.type?.hashCode() ?: 0)
+        }
+        return hash
+    }
+
+    companion object {
+        private const val HASH_SEED = -0x340d631b7bdddcdbL
+        private const val HASH_PRIME = 0x100000001b3L
+    }
+
+}
@@ -5,8 +5,6 @@ import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
 import net.spartanb312.grunt.config.Configs
 import net.spartanb312.grunt.config.Configs.isExcluded
 import net.spartanb312.grunt.config.Configs.isMixinClass
@@ -14,48 +12,74 @@ import net.spartanb312.grunt.config.Configs.saveToFile
 import net.spartanb312.grunt.config.Configs.shouldRemove
 import net.spartanb312.grunt.event.events.WritingClassEvent
 import net.spartanb312.grunt.event.events.WritingResourceEvent
+import net.spartanb312.grunt.process.CodeBudget
 import net.spartanb312.grunt.process.hierarchy.Hierarchy
-import net.spartanb312.grunt.process.hierarchy.ReferenceSearch
-import net.spartanb312.grunt.utils.corruptCRC32
+import net.spartanb312.grunt.process.hierarchy.HierarchyService
+import net.spartanb312.grunt.process.hierarchy.ReferenceIndex
 import net.spartanb312.grunt.utils.corruptJarHeader
 import net.spartanb312.grunt.utils.logging.Logger
 import org.objectweb.asm.ClassReader
 import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.MethodVisitor
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.commons.ClassRemapper
 import org.objectweb.asm.commons.SimpleRemapper
 import org.objectweb.asm.tree.ClassNode
-import org.objectweb.asm.tree.LabelNode
 import org.objectweb.asm.tree.MethodNode
-import org.objectweb.asm.tree.analysis.Analyzer
-import org.objectweb.asm.tree.analysis.BasicInterpreter
 import java.io.File
 import java.text.SimpleDateFormat
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import java.util.jar.JarFile
-import java.util.zip.ZipEntry
-import java.util.zip.ZipOutputStream
 
 class ResourceCache(private val input: String, private val libs: List<String>) {
 
-    val classes = Object2ObjectOpenHashMap<String, ClassNode>()
-    val libraries = Object2ObjectOpenHashMap<String, ClassNode>()
-    val resources = Object2ObjectOpenHashMap<String, ByteArray>()
+    val classes = ClassMap()
+    val libraries = LibraryIndex(
+        Configs.Settings.libraryCache.takeIf { it.isNotEmpty() }?.let { LibraryCache(File(it)) }
+    )
+    val resources = ResourceStore(Configs.Settings.resourceSpillThreshold)
+    val hierarchies = HierarchyService(this)
+    val references = ReferenceIndex()
+    val methodTracker = MethodTracker()
+    val deadCodePruner = DeadCodePruner(methodTracker)
+    val hotness = HotnessProfile()
     val trashClasses = Object2ObjectOpenHashMap<String, ClassNode>()
+    private val unresolved = ConcurrentHashMap.newKeySet<String>()
 
-    val allClasses
-        get() = mutableListOf<ClassNode>().apply {
-            addAll(classes.values)
-            addAll(libraries.values)
-        }
+    // Views follow class changes by delta, they are rebuilt when libraries or the exclusion settings change
+    private val allClassesView = ClassViewCache(classes, { listOf(libraries.version) }, { libraries.values })
+    private val nonExcludedView = ClassViewCache(
+        classes, { listOf(Configs.Settings.exclusions, Configs.Settings.mixinPackages, Configs.Settings.globPatterns) }
+    ) { !it.isExcluded }
+    private val mixinClassesView = ClassViewCache(
+        classes, { listOf(Configs.Settings.mixinPackages, Configs.Settings.globPatterns) }
+    ) { it.isMixinClass }
+
+    val allClasses: List<ClassNode> get() = allClassesView.get()
+
+    /**
+     * Same as allClasses but libraries come with method bodies, which are parsed again on each iteration
+     */
+    val allClassesWithCode get() = classes.values.asSequence() + libraries.fullClasses()
 
-    val nonExcluded get() = classes.values.filter { !it.isExcluded }
-    val mixinClasses get() = classes.values.filter { it.isMixinClass }
+    val nonExcluded: List<ClassNode> get() = nonExcludedView.get()
+    val mixinClasses: List<ClassNode> get() = mixinClassesView.get()
 
     val classMappings = Object2ObjectOpenHashMap<String, String>()
     val revMappings = Object2ObjectOpenHashMap<String, String>()
     private val mappingObjects = Object2ObjectOpenHashMap<String, JsonObject>()
 
+    /**
+     * Mappings and metrics of this run go here
+     */
+    val mappingsDirectory by lazy {
+        "mappings/${SimpleDateFormat("yyyy-MM-dd HH-mm-ss").format(Date())} ${File(Configs.Settings.input).name}/"
+    }
+    val writtenClassBytes = AtomicLong()
+
     fun getMapping(name: String): String = classMappings.getOrElse(name) { name }
 
     fun getPrevName(name: String):String = revMappings.getOrElse(name) { name }
@@ -76,6 +100,9 @@ class ResourceCache(private val input: String, private val libs: List<String>) {
             val adapter = ClassRemapper(copy, remapper)
             node.accept(adapter)
             classes[name] = copy
+            methodTracker.remapped(node, copy)
+            hotness.remapped(node, copy)
+            CodeBudget.remapped(node, copy)
             trashClasses[name]?.let {
                 trashClasses[name] = copy
             }
@@ -94,48 +121,54 @@ class ResourceCache(private val input: String, private val libs: List<String>) {
                 }
             }
         }
+        hierarchies.onRemap(if (remapClassNames) mappings else emptyMap())
     }
 
     fun readJar() {
-        readInput()
-        readLibs()
+        JarDecoder(threads).use { decoder ->
+            readInput(decoder)
+            readLibs(decoder)
+        }
+        methodTracker.record(classes.values, Configs.Settings.parallel)
+        CodeBudget.record(classes.values)
+        Configs.Settings.hotnessProfile.takeIf { it.isNotEmpty() }?.let {
+            hotness.load(File(it), classes, Configs.Settings.hotMethodCount)
+        }
+        Logger.info("Building hierarchies...")
+        hierarchies.build()
     }
 
     fun dumpJar(targetFile: String) {
         val outputFile = File(targetFile)
-        if (outputFile.exists()) {
-            Logger.warn("Existing output file will be overridden!")
-        }
-        val outputStream = outputFile.outputStream()
+        val writer = if (isDirectoryOutput(outputFile)) openDirectory(outputFile) else openJar(outputFile)
+        writer.use { writeEntries(it) }
+        resources.close()
+        libraries.close()
 
-        if (Configs.Settings.corruptJarHeader) {
-            Logger.info("Corrupting jar header...")
-            corruptJarHeader(outputStream)
+        if (Configs.Settings.generateRemap) {
+            Logger.info("Writing mappings...")
+            if (mappingObjects.isNotEmpty()) {
+                mappingObjects.forEach { (name, obj) ->
+                    obj.saveToFile(File("$mappingsDirectory$name.json"))
+                }
+            }
         }
+    }
 
-        ZipOutputStream(outputStream).apply {
-            setLevel(Configs.Settings.compressionLevel)
+    private fun writeEntries(writer: EntryWriter) {
+        writer.apply {
+            val hierarchy = hierarchies.classes()
 
-            if (Configs.Settings.archiveComment.isNotEmpty()) {
-                setComment(Configs.Settings.archiveComment)
-            }
-
-            if (Configs.Settings.corruptCRC32) {
-                Logger.info("Corrupting CRC32...")
-                corruptCRC32()
-            }
-
-            Logger.info("Building hierarchies...")
-            val hierarchy = Hierarchy(this@ResourceCache)
-            hierarchy.build(true)
+            Logger.info("Removing dead code...")
+            deadCodePruner.prune(classes.values, Configs.Settings.parallel)
 
             Logger.info("Writing classes...")
-            val mutex = Mutex()
+            references.refresh(classes.values, Configs.Settings.parallel)
             runBlocking {
                 for (classNode in classes.values) {
                     if (classNode.name == "module-info" || classNode.name.shouldRemove) continue
                     suspend fun job() {
-                        val missingList = ReferenceSearch.checkMissing(classNode, hierarchy)
+                        val missingList = references.checkMissing(classNode, hierarchy)
                         val missingRef = missingList.isNotEmpty()
                         if (missingRef && Configs.Settings.missingCheck) {
                             Logger.error("Class ${classNode.name} missing reference:")
@@ -152,34 +185,26 @@ class ResourceCache(private val input: String, private val libs: List<String>) {
                         val writingClassEvent = WritingClassEvent(entryName, classNode)
                         writingClassEvent.post()
                         if (!writingClassEvent.cancelled) {
-                            val byteArray = try {
-                                if (missing) Logger.warn("Using COMPUTE_MAXS due to ${classNode.name} missing dependencies or reference.")
-                                ClassDumper(this@ResourceCache, hierarchy, useComputeMax).apply {
-                                    classNode.accept(CustomClassNode(Opcodes.ASM9, this))
-                                }.toByteArray()
-                            } catch (exception: Exception) {
-                                Logger.error("Failed to dump class ${classNode.name}. Trying ${if (useComputeMax) "COMPUTE_FRAMES" else "COMPUTE_MAXS"}")
-                                exception.printStackTrace()
+                            if (missing) Logger.warn("Using COMPUTE_MAXS due to ${classNode.name} missing dependencies or reference.")
+                            val byteArray = dumpOrEmpty(classNode) {
                                 try {
-                                    ClassDumper(this@ResourceCache, hierarchy, !useComputeMax).apply {
-                                        classNode.accept(CustomClassNode(Opcodes.ASM9, this))
-                                    }.toByteArray()
-                                } catch (exception: Exception) {
-                                    Logger.error("Failed to dump class ${classNode.name}!")
-                                    exception.printStackTrace()
-                                    ByteArray(0)
+                                    if (!useComputeMax && Configs.Settings.preserveFrames) dumpPreservingFrames(classNode, hierarchy)
+                                    else if (useComputeMax && deadCodePruner.hasKnownMaxs(classNode)) {
+                                        ClassWriter(0).apply { classNode.accept(this) }.toByteArray()
+                                    } else ClassDumper(hierarchy, useComputeMax).apply { classNode.accept(this) }.toByteArray()
+                                } catch (exception: ClassDumper.MissingClassException) {
+                                    // Missing classes are checked up front by reference, a type only met while
+                                    // merging frames (a field or return type, a super class of one) still ends up here
+                                    Logger.error("Missing dependency ${exception.missing}")
+                                    Logger.warn("Using COMPUTE_MAXS due to ${classNode.name} merging frames of ${exception.missing}.")
+                                    ClassDumper(hierarchy, true).apply { classNode.accept(this) }.toByteArray()
                                 }
                             }
                             val event = WritingResourceEvent(entryName, byteArray)
                             event.post()
-                            if (!event.cancelled) mutex.withLock {
-                                val zipEntry = ZipEntry(entryName)
-                                if (Configs.Settings.removeTimestamps) {
-                                    zipEntry.time = 0
-                                }
-                                putNextEntry(zipEntry)
-                                write(byteArray)
-                                closeEntry()
+                            if (!event.cancelled) {
+                                write(entryName, byteArray)
+                                writtenClassBytes.addAndGet(byteArray.size.toLong())
                             }
                         }
                     }
@@ -190,149 +215,215 @@ class ResourceCache(private val input: String, private val libs: List<String>) {
             if (Configs.Settings.missingCheck) hierarchy.printMissing()
 
             Logger.info("Writing resources...")
-            for ((name, bytes) in resources) {
-                if (name.shouldRemove) continue
-                val event = WritingResourceEvent(name, bytes)
-                event.post()
-                if (!event.cancelled) {
-                    val zipEntry = ZipEntry(name)
-                    if (Configs.Settings.removeTimestamps) {
-                        zipEntry.time = 0
+            runBlocking {
+                resources.forEach { name, entry ->
+                    if (name.shouldRemove) return@forEach
+                    fun job() {
+                        if (entry is ResourceStore.Entry.Local || entry is ResourceStore.Entry.Raw) {
+                            // Only read when a listener asks for the bytes
+                            val event = WritingResourceEvent(name) { resources.bytes(entry) }
+                            event.post()
+                            when {
+                                event.cancelled -> Unit
+                                event.isRead -> write(name, event.byteArray)
+                                entry is ResourceStore.Entry.Raw -> writeRaw(name, entry.source, entry.record)
+                                entry is ResourceStore.Entry.Local -> writeFile(name, entry.file)
+                            }
+                        } else {
+                            val bytes = resources.bytes(entry)
+                            val event = WritingResourceEvent(name, bytes)
+                            event.post()
+                            if (!event.cancelled) write(name, bytes)
+                        }
                     }
-                    putNextEntry(zipEntry)
-                    write(bytes)
-                    closeEntry()
+                    if (Configs.Settings.parallel) launch(Dispatchers.IO) { job() } else job()
                 }
             }
-            close()
-
-            if (Configs.Settings.generateRemap) {
-                Logger.info("Writing mappings...")
-                if (mappingObjects.isNotEmpty()) {
-                    val dir =
-                        "mappings/${SimpleDateFormat("yyyy-MM-dd HH-mm-ss").format(Date())}" +
-                                " ${File(Configs.Settings.input).name}/"
-                    mappingObjects.forEach { (name, obj) ->
-                        obj.saveToFile(File("$dir$name.json"))
-                    }
-                }
+        }
+    }
+
+    private inline fun dumpOrEmpty(classNode: ClassNode, dump: () -> ByteArray): ByteArray = try {
+        dump()
+    } catch (exception: Exception) {
+        Logger.error("Failed to dump class ${classNode.name}!")
+        exception.printStackTrace()
+        ByteArray(0)
+    }
+
+    /**
+     * Unchanged methods keep the frames and maxs they were read with,
+     * frames are only computed for the others on a class holding just them
+     */
+    private fun dumpPreservingFrames(classNode: ClassNode, hierarchy: Hierarchy): ByteArray {
+        // Splitting costs a second parse of the changed methods, only worth it when most code is unchanged
+        val changed = classNode.methods.filter { !methodTracker.isUnchanged(it) }
+        val changedSize = changed.sumOf { it.instructions.size() }
+        if (classNode.version and 0xFFFF < Opcodes.V1_6
+            || changedSize * 4 > classNode.methods.sumOf { it.instructions.size() }
+        ) return ClassDumper(hierarchy).apply { classNode.accept(this) }.toByteArray()
+
+        val computed = IdentityHashMap<MethodNode, MethodNode>()
+        if (changed.isNotEmpty()) {
+            val partial = ClassNode().apply {
+                visit(
+                    classNode.version,
+                    classNode.access,
+                    classNode.name,
+                    classNode.signature,
+                    classNode.superName,
+                    classNode.interfaces?.toTypedArray()
+                )
+                methods.addAll(changed)
+            }
+            val bytes = ClassDumper(hierarchy).apply { partial.accept(this) }.toByteArray()
+            val result = ClassNode().apply { ClassReader(bytes).accept(this, ClassReader.EXPAND_FRAMES) }
+            changed.forEachIndexed { index, methodNode -> computed[methodNode] = result.methods[index] }
+        }
+        val writer = ClassWriter(0)
+        val methods = classNode.methods.iterator()
+        classNode.accept(object : ClassVisitor(Opcodes.ASM9, writer) {
+            override fun visitMethod(
+                access: Int,
+                name: String?,
+                descriptor: String?,
+                signature: String?,
+                exceptions: Array<out String>?
+            ): MethodVisitor? {
+                val replacement = computed[methods.next()] ?: return super.visitMethod(
+                    access, name, descriptor, signature, exceptions
+                )
+                replacement.accept(writer)
+                return null
             }
+        })
+        return writer.toByteArray()
+    }
+
+    private val threads get() = if (Configs.Settings.parallel) Runtime.getRuntime().availableProcessors() else 1
+
+    /**
+     * Directory output when the target is an existing directory, ends with a separator,
+     * or the input is a directory and the target is not a jar or zip
+     */
+    private fun isDirectoryOutput(outputFile: File): Boolean {
+        val path = outputFile.path
+        return outputFile.isDirectory || path.endsWith("/") || path.endsWith(File.separator)
+                || (File(input).isDirectory && !outputFile.isFile && outputFile.extension !in listOf("jar", "zip"))
+    }
+
+    private fun openJar(outputFile: File): EntryWriter {
+        if (outputFile.exists()) {
+            Logger.warn("Existing output file will be overridden!")
+            resources.detach(outputFile)
+        }
+        val outputStream = outputFile.outputStream()
+
+        if (Configs.Settings.corruptJarHeader) {
+            Logger.info("Corrupting jar header...")
+            corruptJarHeader(outputStream)
         }
+
+        if (Configs.Settings.corruptCRC32) {
+            Logger.info("Corrupting CRC32...")
+        }
+
+        return JarWriter(
+            outputStream,
+            Configs.Settings.compressionLevel,
+            Configs.Settings.removeTimestamps,
+            Configs.Settings.corruptCRC32,
+            Configs.Settings.archiveComment
+        )
+    }
+
+    private fun openDirectory(outputFile: File): EntryWriter {
+        resources.detach(outputFile)
+        DirectoryWriter.prepare(outputFile, (libs + input).map { File(it) })
+        return DirectoryWriter(outputFile, threads)
     }
 
-    private fun readInput() {
+    private fun readInput(decoder: JarDecoder) {
         Logger.info("Reading $input")
-        JarFile(File(input)).apply {
-            entries().asSequence()
-                .filter { !it.isDirectory }
-                .forEach {
-                    if (it.name.endsWith(".class")) {
-                        kotlin.runCatching {
-                            ClassReader(getInputStream(it)).apply {
-                                val classNode = ClassNode()
-                                accept(classNode, ClassReader.EXPAND_FRAMES)
-                                classes[classNode.name] = classNode
-                            }
-                        }
-                    } else resources[it.name] = getInputStream(it).readBytes()
-                }
+        val inputFile = File(input)
+        if (inputFile.isDirectory) {
+            inputFile.walk().filter { it.isFile && !it.name.endsWith(".class") }.forEach {
+                resources.addFile(it.relativeTo(inputFile).invariantSeparatorsPath, it)
+            }
+            decoder.decode(inputFile) { classes[it.name] = it }
+            return
+        }
+        val source = runCatching { ZipSource.open(File(input)) }.onFailure {
+            Logger.warn("Failed to read raw entries of $input: ${it.message}")
+        }.getOrNull()
+        source?.records?.forEach {
+            if (!it.isDirectory && !it.name.endsWith(".class")) resources.addRaw(source, it)
+        }
+        JarFile(File(input)).use { jar ->
+            // Fall back to inflating resources when the raw reader can't handle the input
+            val onResource = if (source == null) { name: String, bytes: ByteArray -> resources.load(name, bytes) } else null
+            decoder.decode(jar, onResource = onResource) {
+                classes[it.name] = it
+            }
         }
     }
 
-    private fun readLibs() {
+    private fun readLibs(decoder: JarDecoder) {
         Logger.info("Reading Libraries...")
         libs.map { File(it) }.forEach { file ->
             if (file.isDirectory) {
-                readDirectory(file)
+                readDirectory(file, decoder)
             } else {
-                readJar(JarFile(file))
+                readJar(file, decoder)
             }
         }
+        Logger.info("Indexed ${libraries.size} library classes")
     }
 
-    private fun readDirectory(directory: File) {
+    private fun readDirectory(directory: File, decoder: JarDecoder) {
         directory.listFiles()?.forEach { file ->
             if (file.isDirectory) {
-                readDirectory(file)
+                readDirectory(file, decoder)
             } else {
-                readJar(JarFile(file))
+                readJar(file, decoder)
             }
         }
     }
 
-    private fun readJar(jar: JarFile) {
-        Logger.info("  - ${jar.name}")
-        jar.entries().asSequence().filter { !it.isDirectory }.forEach {
-            if (it.name.endsWith(".class")) {
-                kotlin.runCatching {
-                    ClassReader(jar.getInputStream(it)).apply {
-                        val classNode = ClassNode()
-                        accept(classNode, ClassReader.EXPAND_FRAMES)
-                        libraries[classNode.name] = classNode
-                    }
-                }
-            }
-        }
+    private fun readJar(file: File, decoder: JarDecoder) {
+        Logger.info("  - ${file.path}")
+        libraries.index(file, decoder)
     }
 
     fun addClass(classNode: ClassNode) {
         classes[classNode.name] = classNode
         trashClasses[classNode.name] = classNode
+        hierarchies.onAdd(classNode)
     }
 
     fun removeClass(classNode: ClassNode) {
         classes.remove(classNode.name)
         trashClasses.remove(classNode.name)
+        hierarchies.onRemove(classNode.name)
     }
 
+    /**
+     * Thread safe, unresolvable names are remembered and never looked up again
+     */
     fun getClassNode(name: String): ClassNode? {
         return classes[name] ?: libraries[name] ?: readInRuntime(name)
     }
 
     fun readInRuntime(name: String): ClassNode? {
-        return try {
-            val classNode = ClassNode()
-            ClassReader(name).apply {
-                accept(classNode, ClassReader.EXPAND_FRAMES)
-                libraries[classNode.name] = classNode
-            }
-            classNode
-        } catch (ignore: Exception) {
-            null
-        }
-    }
-
-    //credit https://blog.51cto.com/lsieun/4594350
-    class CustomClassNode(api: Int, cv: ClassVisitor) : ClassNode(api) {
-        init {
-            this.cv = cv
-        }
-
-        override fun visitEnd() {
-            methods.forEach { mn ->
-                transform(name, mn)
-            }
-            super.visitEnd()
-            if (cv != null) {
-                accept(cv)
-            }
-        }
-
-        fun transform(owner: String, mn: MethodNode) {
-            mn.maxStack = -1
-            val ana = Analyzer(BasicInterpreter())
+        if (name in unresolved) return null
+        val classNode = RuntimeClasses.read(name)?.let { bytes ->
             runCatching {
-                ana.analyze(owner, mn)
-                val frames = ana.frames
-                val insnNodes = mn.instructions.toArray()
-                for (i in frames.indices) {
-                    if (frames[i] == null && insnNodes[i] !is LabelNode) {
-                        mn.instructions.remove(insnNodes[i])
-                    }
-                }
-            }.onFailure {
-                //it.printStackTrace()
-            }
+                ClassNode().apply { ClassReader(bytes).accept(this, LibraryIndex.SKELETON_OPTIONS) }
+            }.getOrNull()
+        }
+        if (classNode == null) {
+            unresolved.add(name)
+            return null
         }
+        return libraries.putIfAbsent(classNode.name, classNode)
     }
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+package net.spartanb312.grunt.process.resource
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap
+import java.io.File
+
+/**
+ * Non-class entries of the input
+ * Untouched entries stay compressed inside the input zip and are copied raw on dump,
+ * or stay in the input directory and are copied as files.
+ * Only loaded or detached entries can be spilled: reaching spillThreshold they are moved to a temp file,
+ * the others stay on heap. Raw and directory entries are never spilled.
+ * Reading one inflates it, reads its region of the temp file or reads the file on each call,
+ * replacing one keeps the new bytes on heap.
+ */
+class ResourceStore(private val spillThreshold: Int = 0) : AutoCloseable {
+
+    sealed class Entry {
+        class Heap(val bytes: ByteArray) : Entry()
+        class Raw(val source: ZipSource, val record: ZipSource.Record) : Entry()
+        class Spilled(val region: SpillFile.Region) : Entry()
+        class Local(val file: File) : Entry()
+    }
+
+    private val entries = Object2ObjectLinkedOpenHashMap<String, Entry>()
+    private val sources = mutableSetOf<ZipSource>()
+    private var spillFile: SpillFile? = null
+
+    val names: Set<String> get() = entries.keys
+    val size get() = entries.size
+
+    operator fun get(name: String): ByteArray? = entries[name]?.let { bytes(it) }
+
+    operator fun set(name: String, bytes: ByteArray) {
+        entries[name] = Entry.Heap(bytes)
+    }
+
+    fun bytes(entry: Entry): ByteArray = when (entry) {
+        is Entry.Heap -> entry.bytes
+        is Entry.Raw -> entry.source.readBytes(entry.record)
+        is Entry.Spilled -> spillFile!!.read(entry.region)
+        is Entry.Local -> entry.file.readBytes()
+    }
+
+    /**
+     * Add an entry read from the input, large ones are spilled off heap
+     */
+    fun load(name: String, bytes: ByteArray) {
+        entries[name] = loaded(bytes)
+    }
+
+    private fun loaded(bytes: ByteArray): Entry {
+        return if (spillThreshold > 0 && bytes.size >= spillThreshold) {
+            val spillFile = spillFile ?: SpillFile().also { spillFile = it }
+            Entry.Spilled(spillFile.append(bytes))
+        } else Entry.Heap(bytes)
+    }
+
+    operator fun contains(name: String): Boolean = entries.containsKey(name)
+
+    /**
+     * Drop the entry without reading it, use bytes() on the result for the content
+     */
+    fun remove(name: String): Entry? = entries.remove(name)
+
+    fun addRaw(source: ZipSource, record: ZipSource.Record) {
+        sources.add(source)
+        entries[record.name] = Entry.Raw(source, record)
+    }
+
+    fun addFile(name: String, file: File) {
+        entries[name] = Entry.Local(file)
+    }
+
+    fun forEach(action: (name: String, entry: Entry) -> Unit) = entries.forEach(action)
+
+    /**
+     * Load all entries backed by the given file or directory, needed before it gets overwritten
+     */
+    fun detach(target: File) {
+        val path = target.canonicalPath
+        fun isUnder(file: File) = file.canonicalPath.let { it == path || it.startsWith(path + File.separator) }
+        val detached = sources.filter { isUnder(it.file) }.toSet()
+        entries.entries.forEach { entry ->
+            when (val value = entry.value) {
+                is Entry.Raw -> if (value.source in detached) entry.setValue(loaded(bytes(value)))
+                is Entry.Local -> if (isUnder(value.file)) entry.setValue(loaded(bytes(value)))
+                else -> Unit
+            }
+        }
+    }
+
+    override fun close() {
+        sources.forEach { it.close() }
+        sources.clear()
+        spillFile?.close()
+        spillFile = null
+    }
+
+}
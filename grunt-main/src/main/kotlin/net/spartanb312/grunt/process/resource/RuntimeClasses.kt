@@ -0,0 +1,44 @@
+package net.spartanb312.grunt.process.resource
+
+import java.net.URI
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Runtime class lookup
+ * JDK classes are read from the jrt filesystem through a package index built once.
+ * Other names and Java 8 runtimes fall back to the system class loader.
+ */
+object RuntimeClasses {
+
+    // Package name -> module roots containing it
+    private val packages: Map<String, List<Path>>? by lazy {
+        runCatching {
+            val jrt = FileSystems.getFileSystem(URI.create("jrt:/"))
+            val modules = jrt.getPath("/modules")
+            val index = HashMap<String, List<Path>>()
+            Files.newDirectoryStream(jrt.getPath("/packages")).use { packageDirs ->
+                packageDirs.forEach { packageDir ->
+                    val packageName = packageDir.fileName.toString().trimEnd('/').replace('.', '/')
+                    val roots = Files.newDirectoryStream(packageDir).use { moduleLinks ->
+                        moduleLinks.map { modules.resolve(it.fileName.toString().trimEnd('/')) }
+                    }
+                    index[packageName] = roots
+                }
+            }
+            index
+        }.getOrNull()
+    }
+
+    fun read(name: String): ByteArray? {
+        packages?.get(name.substringBeforeLast('/', ""))?.forEach { root ->
+            val path = root.resolve("$name.class")
+            if (Files.exists(path)) return runCatching { Files.readAllBytes(path) }.getOrNull()
+        }
+        return runCatching {
+            ClassLoader.getSystemResourceAsStream("$name.class")?.use { it.readBytes() }
+        }.getOrNull()
+    }
+
+}
@@ -0,0 +1,48 @@
+package net.spartanb312.grunt.process.resource
+
+import java.io.EOFException
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+/**
+ * Append only temp file
+ * Keeps large entries off heap, reads copy the stored region back with positional reads.
+ */
+class SpillFile : AutoCloseable {
+
+    class Region(val offset: Long, val length: Int)
+
+    private val file = File.createTempFile("grunt-resources", ".bin").apply { deleteOnExit() }
+    private val channel = FileChannel.open(
+        file.toPath(),
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.DELETE_ON_CLOSE
+    )
+    private var end = 0L
+
+    @Synchronized
+    fun append(bytes: ByteArray): Region {
+        val region = Region(end, bytes.size)
+        val buffer = ByteBuffer.wrap(bytes)
+        var written = 0
+        while (written < bytes.size) written += channel.write(buffer, end + written)
+        end += bytes.size
+        return region
+    }
+
+    fun read(region: Region): ByteArray {
+        val bytes = ByteArray(region.length)
+        val buffer = ByteBuffer.wrap(bytes)
+        while (buffer.hasRemaining()) {
+            val count = channel.read(buffer, region.offset + buffer.position())
+            if (count < 0) throw EOFException("Spilled region ends past ${file.name}")
+        }
+        return bytes
+    }
+
+    override fun close() = channel.close()
+
+}
@@ -0,0 +1,186 @@
+package net.spartanb312.grunt.process.resource
+
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+import java.util.zip.Inflater
+import java.util.zip.ZipException
+
+/**
+ * Raw zip reader
+ * Parses the central directory only, entry data can be copied without inflating.
+ * All reads are positional so a source can be shared between threads.
+ */
+class ZipSource private constructor(val file: File, private val channel: FileChannel) : AutoCloseable {
+
+    class Record(
+        val name: String,
+        val method: Int,
+        val crc: Long,
+        val compressedSize: Long,
+        val size: Long,
+        val localHeaderOffset: Long
+    ) {
+        val isDirectory get() = name.endsWith("/")
+    }
+
+    val records = mutableListOf<Record>()
+
+    private fun readCentralDirectory() {
+        val fileSize = channel.size()
+        // Locate end of central directory record
+        val tailSize = minOf(fileSize, 0xFFFFL + 22).toInt()
+        val tail = read(fileSize - tailSize, tailSize)
+        var endPosition = -1
+        for (index in tailSize - 22 downTo 0) {
+            if (tail.getInt(index) == END_HEADER) {
+                endPosition = index
+                break
+            }
+        }
+        require(endPosition != -1) { "End of central directory not found" }
+        var count = tail.getShort(endPosition + 10).toInt() and 0xFFFF
+        var directorySize = tail.getInt(endPosition + 12).toLong() and 0xFFFFFFFFL
+        var directoryOffset = tail.getInt(endPosition + 16).toLong() and 0xFFFFFFFFL
+        // Bytes before the archive, like a corrupted header or a launcher stub
+        var base = fileSize - tailSize + endPosition - directorySize - directoryOffset
+        if (count == 0xFFFF || directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC) {
+            val locator = read(fileSize - tailSize + endPosition - 20, 20)
+            require(locator.getInt(0) == ZIP64_LOCATOR) { "Zip64 locator not found" }
+            val zip64End = read(locator.getLong(8), 56)
+            require(zip64End.getInt(0) == ZIP64_END) { "Zip64 end of central directory not found" }
+            count = zip64End.getLong(32).toInt()
+            directorySize = zip64End.getLong(40)
+            directoryOffset = zip64End.getLong(48)
+            base = 0
+        }
+        val directory = read(base + directoryOffset, directorySize.toInt())
+        var position = 0
+        repeat(count) {
+            require(directory.getInt(position) == CENTRAL_HEADER) { "Malformed central directory" }
+            val flags = directory.getShort(position + 8).toInt()
+            val method = directory.getShort(position + 10).toInt() and 0xFFFF
+            val crc = directory.getInt(position + 16).toLong() and 0xFFFFFFFFL
+            var compressedSize = directory.getInt(position + 20).toLong() and 0xFFFFFFFFL
+            var size = directory.getInt(position + 24).toLong() and 0xFFFFFFFFL
+            val nameLength = directory.getShort(position + 28).toInt() and 0xFFFF
+            val extraLength = directory.getShort(position + 30).toInt() and 0xFFFF
+            val commentLength = directory.getShort(position + 32).toInt() and 0xFFFF
+            var offset = directory.getInt(position + 42).toLong() and 0xFFFFFFFFL
+            val nameBytes = ByteArray(nameLength) { directory.get(position + 46 + it) }
+            // Zip64 extended information
+            var extra = position + 46 + nameLength
+            val extraEnd = extra + extraLength
+            while (extra + 4 <= extraEnd) {
+                val tag = directory.getShort(extra).toInt() and 0xFFFF
+                val length = directory.getShort(extra + 2).toInt() and 0xFFFF
+                if (tag == ZIP64_EXTRA) {
+                    var field = extra + 4
+                    if (size == ZIP64_MAGIC) size = directory.getLong(field).also { field += 8 }
+                    if (compressedSize == ZIP64_MAGIC) compressedSize = directory.getLong(field).also { field += 8 }
+                    if (offset == ZIP64_MAGIC) offset = directory.getLong(field)
+                }
+                extra += 4 + length
+            }
+            require(flags and 1 == 0) { "Encrypted entries are not supported" }
+            require(method == STORED || method == JarWriter.DEFLATED) { "Unsupported compression method $method" }
+            records.add(Record(String(nameBytes, Charsets.UTF_8), method, crc, compressedSize, size, base + offset))
+            position = extraEnd + commentLength
+        }
+    }
+
+    private fun read(position: Long, length: Int): ByteBuffer {
+        val bytes = ByteArray(length)
+        var read = 0
+        while (read < length) {
+            val count = channel.read(ByteBuffer.wrap(bytes, read, length - read), position + read)
+            if (count < 0) break
+            read += count
+        }
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+    }
+
+    private fun dataOffset(record: Record): Long {
+        val header = read(record.localHeaderOffset, 30)
+        require(header.getInt(0) == LOCAL_HEADER) { "Malformed local header of ${record.name}" }
+        val nameLength = header.getShort(26).toInt() and 0xFFFF
+        val extraLength = header.getShort(28).toInt() and 0xFFFF
+        return record.localHeaderOffset + 30 + nameLength + extraLength
+    }
+
+    /**
+     * Copy the compressed data as is
+     */
+    fun transferRaw(record: Record, output: OutputStream) {
+        var position = dataOffset(record)
+        var remaining = record.compressedSize
+        val buffer = ByteArray(1 shl 16)
+        while (remaining > 0) {
+            val length = minOf(remaining, buffer.size.toLong()).toInt()
+            val count = channel.read(ByteBuffer.wrap(buffer, 0, length), position)
+            require(count > 0) { "Unexpected end of ${record.name}" }
+            output.write(buffer, 0, count)
+            position += count
+            remaining -= count
+        }
+    }
+
+    /**
+     * Inflate the entry into a byte array, checked against the recorded size and CRC like ZipInputStream does
+     */
+    fun readBytes(record: Record): ByteArray {
+        val raw = ByteArrayOutputStream(record.compressedSize.toInt())
+        transferRaw(record, raw)
+        val result = if (record.method == STORED) raw.toByteArray() else inflate(raw.toByteArray(), record)
+        if (result.size.toLong() != record.size) throw ZipException("Invalid entry size of ${record.name}")
+        if (CRC32().apply { update(result) }.value != record.crc) throw ZipException("Invalid entry CRC of ${record.name}")
+        return result
+    }
+
+    private fun inflate(input: ByteArray, record: Record): ByteArray {
+        val inflater = Inflater(true)
+        try {
+            inflater.setInput(input)
+            val result = ByteArray(record.size.toInt())
+            var inflated = 0
+            while (inflated < result.size && !inflater.finished()) {
+                val count = inflater.inflate(result, inflated, result.size - inflated)
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break
+                inflated += count
+            }
+            return if (inflated == result.size) result else result.copyOf(inflated)
+        } finally {
+            inflater.end()
+        }
+    }
+
+    override fun close() = channel.close()
+
+    companion object {
+        const val STORED = 0
+
+        private const val LOCAL_HEADER = 0x04034b50
+        private const val CENTRAL_HEADER = 0x02014b50
+        private const val END_HEADER = 0x06054b50
+        private const val ZIP64_END = 0x06064b50
+        private const val ZIP64_LOCATOR = 0x07064b50
+        private const val ZIP64_EXTRA = 0x0001
+        private const val ZIP64_MAGIC = 0xFFFFFFFFL
+
+        fun open(file: File): ZipSource {
+            val channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)
+            return try {
+                ZipSource(file, channel).apply { readCentralDirectory() }
+            } catch (exception: Exception) {
+                channel.close()
+                throw exception
+            }
+        }
+    }
+
+}
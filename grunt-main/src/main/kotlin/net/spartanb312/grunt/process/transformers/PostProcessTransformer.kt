@@ -31,6 +31,9 @@ object PostProcessTransformer : Transformer("PostProcess", Category.Miscellaneou
     private val velocityMain by setting("Velocity JSON", true)
     private val manifestReplace by setting("ManifestPrefix", listOf("Main-Class:"))
 
+    override val reads = setOf(State.CLASS_SET, State.RESOURCES)
+    override val writes = setOf(State.RESOURCES)
+
     override fun ResourceCache.transform() {
         Logger.info(" - Post processing resources...")
         if (manifest) processManifest()
@@ -1,21 +1,19 @@
 package net.spartanb312.grunt.process.transformers.encrypt
 
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
-import kotlinx.coroutines.runBlocking
 import net.spartanb312.genesis.kotlin.extensions.insn.*
 import net.spartanb312.genesis.kotlin.instructions
-import net.spartanb312.grunt.config.Configs
 import net.spartanb312.grunt.config.setting
-import net.spartanb312.grunt.process.MethodProcessor
+import net.spartanb312.grunt.process.ClassPipeline.processClasses
+import net.spartanb312.grunt.process.ClassProcessor
+import net.spartanb312.grunt.process.CodeBudget
 import net.spartanb312.grunt.process.Transformer
+import net.spartanb312.grunt.process.resource.HotnessProfile
 import net.spartanb312.grunt.process.resource.ResourceCache
 import net.spartanb312.grunt.process.transformers.encrypt.number.replaceIAND
 import net.spartanb312.grunt.process.transformers.encrypt.number.replaceINEG
 import net.spartanb312.grunt.process.transformers.encrypt.number.replaceIOR
 import net.spartanb312.grunt.process.transformers.encrypt.number.replaceIXOR
 import net.spartanb312.grunt.utils.Counter
-import net.spartanb312.grunt.utils.count
 import net.spartanb312.grunt.utils.extensions.isAbstract
 import net.spartanb312.grunt.utils.extensions.isNative
 import net.spartanb312.grunt.utils.logging.Logger
@@ -28,34 +26,41 @@ import kotlin.random.Random
  * Replace logic operations with substitutions
  * Last update on 24/10/23
  */
-object ArithmeticEncryptTransformer : Transformer("ArithmeticEncrypt", Category.Encryption), MethodProcessor {
+object ArithmeticEncryptTransformer : Transformer("ArithmeticEncrypt", Category.Encryption), ClassProcessor {
 
     private val times by setting("Intensity", 1)
     private val rate by setting("Percentage", 50)
     private val maxInsnSize by setting("MaxInsnSize", 16384)
     private val exclusion by setting("Exclusion", listOf())
 
-    override fun ResourceCache.transform() {
+    override val reads = setOf(State.CLASS_SET, State.MEMBERS, State.METHOD_BODIES)
+    override val writes = setOf(State.METHOD_BODIES)
+
+    private var hotMethods: HotnessProfile? = null
+
+    override val passes get() = times
+
+    override fun ResourceCache.transform() = processClasses(ArithmeticEncryptTransformer)
+
+    override fun ResourceCache.prepare() {
         Logger.info(" - Encrypting arithmetic instructions...")
-        val count = count {
-            repeat(times) { t ->
-                if (times > 1) Logger.info("    Encrypting integers ${t + 1} of $times times")
-                runBlocking {
-                    nonExcluded.asSequence()
-                        .filter { c -> exclusion.none { c.name.startsWith(it) } }
-                        .forEach { classNode ->
-                            fun job() {
-                                classNode.methods.asSequence()
-                                    .filter { !it.isAbstract && !it.isNative }
-                                    .forEach { methodNode: MethodNode ->
-                                        encryptArithmetic(methodNode)
-                                    }
-                            }
-                            if (Configs.Settings.parallel) launch(Dispatchers.Default) { job() } else job()
-                        }
-                }
+        hotMethods = hotness
+    }
+
+    override fun ResourceCache.accepts(classNode: ClassNode): Boolean {
+        return exclusion.none { classNode.name.startsWith(it) }
+    }
+
+    override fun Counter.transformClass(classNode: ClassNode) {
+        classNode.methods.asSequence()
+            .filter { !it.isAbstract && !it.isNative && hotMethods?.isHot(it) != true }
+            .forEach { methodNode: MethodNode ->
+                encryptArithmetic(methodNode)
             }
-        }.get()
+    }
+
+    override fun report(count: Int) {
+        hotMethods = null
         Logger.info("    Encrypted $count arithmetic instructions")
     }
 
@@ -65,6 +70,7 @@ object ArithmeticEncryptTransformer : Transformer("ArithmeticEncrypt", Category.
 
     private fun Counter.encryptArithmetic(methodNode: MethodNode): Boolean {
         var modified = false
+        val allowance = CodeBudget.allowance(methodNode)
         val insnList = instructions {
             var skipInsn = 0
             for ((index, insn) in methodNode.instructions.withIndex()) {
@@ -75,6 +81,8 @@ object ArithmeticEncryptTransformer : Transformer("ArithmeticEncrypt", Category.
                 // Avoid "method too large"
                 val currentSize = insnList.size() + methodNode.instructions.size() - index
                 if (currentSize >= maxInsnSize
+                    // Keep the method under the size budget
+                    || allowance.remaining < MAX_GROWTH
                     // Obfuscation rate/percentage
                     || Random.nextInt(0, 100) > rate) {
                     +insn
@@ -83,6 +91,7 @@ object ArithmeticEncryptTransformer : Transformer("ArithmeticEncrypt", Category.
                 if (index < methodNode.instructions.size() - 2) {
                     val next = methodNode.instructions[index + 1]
                     val nextNext = methodNode.instructions[index + 2]
+                    val sizeBefore = insnList.size()
                     when {
                         insn.opcode == Opcodes.ICONST_M1 && next.opcode == Opcodes.IXOR && nextNext.opcode == Opcodes.IAND -> {
                             if (Random.nextBoolean()) {
@@ -150,6 +159,8 @@ object ArithmeticEncryptTransformer : Transformer("ArithmeticEncrypt", Category.
                         }
                     }
                     add(1)
+                    // Everything replaced and emitted here is single byte
+                    allowance.take(insnList.size() - sizeBefore - 1 - skipInsn)
                 } else +insn
             }
         }
@@ -157,4 +168,7 @@ object ArithmeticEncryptTransformer : Transformer("ArithmeticEncrypt", Category.
         return modified
     }
 
+    // Longest substitution, IXOR to 11 instructions
+    private const val MAX_GROWTH = 10
+
 }
\ No newline at end of file
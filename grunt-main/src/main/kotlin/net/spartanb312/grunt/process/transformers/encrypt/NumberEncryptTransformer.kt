@@ -1,19 +1,17 @@
 package net.spartanb312.grunt.process.transformers.encrypt
 
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
-import kotlinx.coroutines.runBlocking
 import net.spartanb312.grunt.annotation.DISABLE_SCRAMBLE
-import net.spartanb312.grunt.config.Configs
 import net.spartanb312.grunt.config.setting
-import net.spartanb312.grunt.process.MethodProcessor
+import net.spartanb312.grunt.process.ClassPipeline.processClasses
+import net.spartanb312.grunt.process.ClassProcessor
+import net.spartanb312.grunt.process.CodeBudget
 import net.spartanb312.grunt.process.Transformer
+import net.spartanb312.grunt.process.resource.HotnessProfile
 import net.spartanb312.grunt.process.resource.ResourceCache
 import net.spartanb312.grunt.process.transformers.encrypt.number.NumberEncryptorArrayed
 import net.spartanb312.grunt.process.transformers.encrypt.number.NumberEncryptorArrayed.getOrCreateField
 import net.spartanb312.grunt.process.transformers.encrypt.number.NumberEncryptorClassic
 import net.spartanb312.grunt.utils.Counter
-import net.spartanb312.grunt.utils.count
 import net.spartanb312.grunt.utils.extensions.appendAnnotation
 import net.spartanb312.grunt.utils.extensions.isAbstract
 import net.spartanb312.grunt.utils.extensions.isNative
@@ -25,7 +23,7 @@ import org.objectweb.asm.tree.*
  * Encrypt integer and long numbers
  * Last update on 2024/10/23
  */
-object NumberEncryptTransformer : Transformer("NumberEncrypt", Category.Encryption), MethodProcessor {
+object NumberEncryptTransformer : Transformer("NumberEncrypt", Category.Encryption), ClassProcessor {
 
     private val times by setting("Intensity", 1)
     private val float by setting("FloatingPoint", true)
@@ -33,49 +31,55 @@ object NumberEncryptTransformer : Transformer("NumberEncrypt", Category.Encrypti
     private val maxInsnSize by setting("MaxInsnSize", 16384)
     private val exclusion by setting("Exclusion", listOf())
 
-    override fun ResourceCache.transform() {
+    override val reads = setOf(State.CLASS_SET, State.MEMBERS, State.METHOD_BODIES)
+    override val writes = setOf(State.MEMBERS, State.METHOD_BODIES)
+
+    private var hotMethods: HotnessProfile? = null
+
+    override val passes get() = if (arrayed) 1 else times
+
+    override fun ResourceCache.transform() = processClasses(NumberEncryptTransformer)
+
+    override fun ResourceCache.prepare() {
         Logger.info(" - Encrypting numbers...")
-        val times = if (arrayed) 1 else times
-        val count = count {
-            runBlocking {
-                repeat(times) { t ->
-                    if (times > 1) Logger.info("    Encrypting integers ${t + 1} of $times times")
-                    nonExcluded.asSequence()
-                        .filter { c -> exclusion.none { c.name.startsWith(it) } }
-                        .forEach { classNode ->
-                            fun job() {
-                                val list = mutableListOf<Long>()
-                                val field = if (arrayed) classNode.getOrCreateField() else null
-                                field?.appendAnnotation(DISABLE_SCRAMBLE)
-                                classNode.methods.asSequence()
-                                    .filter { !it.isAbstract && !it.isNative }
-                                    .forEach { methodNode: MethodNode ->
-                                        encryptNumber(classNode, methodNode, field, list)
-                                        if (float) encryptFloatingPoint(classNode, methodNode, field, list)
-                                    }
-                                if (arrayed && list.isNotEmpty() && field != null) {
-                                    val insert = NumberEncryptorArrayed.decryptMethod(classNode, field, list)
-                                    val clinit = classNode.methods.find { it.name == "<clinit>" } ?: MethodNode(
-                                        Opcodes.ACC_STATIC,
-                                        "<clinit>",
-                                        "()V",
-                                        null,
-                                        null
-                                    ).also {
-                                        it.instructions.insert(InsnNode(Opcodes.RETURN))
-                                        classNode.methods.add(it)
-                                    }
-                                    if (field !in classNode.fields) {
-                                        classNode.fields.add(field)
-                                    }
-                                    clinit.instructions.insert(insert)
-                                }
-                            }
-                            if (Configs.Settings.parallel) launch(Dispatchers.Default) { job() } else job()
-                        }
-                }
+        hotMethods = hotness
+    }
+
+    override fun ResourceCache.accepts(classNode: ClassNode): Boolean {
+        return exclusion.none { classNode.name.startsWith(it) }
+    }
+
+    override fun Counter.transformClass(classNode: ClassNode) {
+        val list = mutableListOf<Long>()
+        val field = if (arrayed) classNode.getOrCreateField() else null
+        field?.appendAnnotation(DISABLE_SCRAMBLE)
+        classNode.methods.asSequence()
+            .filter { !it.isAbstract && !it.isNative && hotMethods?.isHot(it) != true }
+            .forEach { methodNode: MethodNode ->
+                encryptNumber(classNode, methodNode, field, list)
+                if (float) encryptFloatingPoint(classNode, methodNode, field, list)
+            }
+        if (arrayed && list.isNotEmpty() && field != null) {
+            val insert = NumberEncryptorArrayed.decryptMethod(classNode, field, list)
+            val clinit = classNode.methods.find { it.name == "<clinit>" } ?: MethodNode(
+                Opcodes.ACC_STATIC,
+                "<clinit>",
+                "()V",
+                null,
+                null
+            ).also {
+                it.instructions.insert(InsnNode(Opcodes.RETURN))
+                classNode.methods.add(it)
+            }
+            if (field !in classNode.fields) {
+                classNode.fields.add(field)
             }
-        }.get()
+            clinit.instructions.insert(insert)
+        }
+    }
+
+    override fun report(count: Int) {
+        hotMethods = null
         Logger.info("    Encrypted $count numbers")
     }
 
@@ -90,86 +94,33 @@ object NumberEncryptTransformer : Transformer("NumberEncrypt", Category.Encrypti
         fieldNode: FieldNode?,
         numList: MutableList<Long>?
     ) {
+        val allowance = CodeBudget.allowance(methodNode)
+        fun encrypt(insn: AbstractInsnNode, value: Number) {
+            val encrypted = if (arrayed && numList != null && fieldNode != null) {
+                NumberEncryptorArrayed.encrypt(value, owner, fieldNode, numList)
+            } else NumberEncryptorClassic.encrypt(value)
+            if (!allowance.replace(insn, encrypted)) return
+            methodNode.instructions.insertBefore(insn, encrypted)
+            methodNode.instructions.remove(insn)
+            add()
+        }
+
         methodNode.instructions
             .filter { it.opcode != Opcodes.NEWARRAY }
             .shuffled()
             .forEach {
-                if (methodNode.instructions.size() < maxInsnSize) {
+                if (methodNode.instructions.size() < maxInsnSize && allowance.remaining > 0) {
                     if (it.opcode in Opcodes.ICONST_M1..Opcodes.ICONST_5) {
-                        val value = it.opcode - Opcodes.ICONST_0
-                        if (arrayed && numList != null && fieldNode != null) {
-                            methodNode.instructions.insertBefore(
-                                it,
-                                NumberEncryptorArrayed.encrypt(
-                                    value,
-                                    owner,
-                                    fieldNode,
-                                    numList
-                                )
-                            )
-                        } else methodNode.instructions.insertBefore(it, NumberEncryptorClassic.encrypt(value))
-                        methodNode.instructions.remove(it)
-                        add()
+                        encrypt(it, it.opcode - Opcodes.ICONST_0)
                     } else if (it is IntInsnNode) {
-                        if (arrayed && numList != null && fieldNode != null) {
-                            methodNode.instructions.insertBefore(
-                                it,
-                                NumberEncryptorArrayed.encrypt(
-                                    it.operand,
-                                    owner,
-                                    fieldNode,
-                                    numList
-                                )
-                            )
-                        } else methodNode.instructions.insertBefore(it, NumberEncryptorClassic.encrypt(it.operand))
-                        methodNode.instructions.remove(it)
-                        add()
+                        encrypt(it, it.operand)
                     } else if (it is LdcInsnNode && it.cst is Int) {
                         val value = it.cst as Int
-                        if (value < -(Short.MAX_VALUE * 8) + Int.MAX_VALUE) {
-                            if (arrayed && numList != null && fieldNode != null) {
-                                methodNode.instructions.insertBefore(
-                                    it,
-                                    NumberEncryptorArrayed.encrypt(
-                                        value,
-                                        owner,
-                                        fieldNode,
-                                        numList
-                                    )
-                                )
-                            } else methodNode.instructions.insertBefore(it, NumberEncryptorClassic.encrypt(value))
-                            methodNode.instructions.remove(it)
-                            add()
-                        }
+                        if (value < -(Short.MAX_VALUE * 8) + Int.MAX_VALUE) encrypt(it, value)
                     } else if (it.opcode in Opcodes.LCONST_0..Opcodes.LCONST_1) {
-                        val value = (it.opcode - Opcodes.LCONST_0).toLong()
-                        if (arrayed && numList != null && fieldNode != null) {
-                            methodNode.instructions.insertBefore(
-                                it,
-                                NumberEncryptorArrayed.encrypt(
-                                    value,
-                                    owner,
-                                    fieldNode,
-                                    numList
-                                )
-                            )
-                        } else methodNode.instructions.insertBefore(it, NumberEncryptorClassic.encrypt(value))
-                        methodNode.instructions.remove(it)
-                        add()
+                        encrypt(it, (it.opcode - Opcodes.LCONST_0).toLong())
                     } else if (it is LdcInsnNode && it.cst is Long) {
-                        if (arrayed && numList != null && fieldNode != null) {
-                            methodNode.instructions.insertBefore(
-                                it,
-                                NumberEncryptorArrayed.encrypt(
-                                    it.cst as Long,
-                                    owner,
-                                    fieldNode,
-                                    numList
-                                )
-                            )
-                        } else methodNode.instructions.insertBefore(it, NumberEncryptorClassic.encrypt(it.cst as Long))
-                        methodNode.instructions.remove(it)
-                        add()
+                        encrypt(it, it.cst as Long)
                     }
                 }
             }
@@ -181,27 +132,22 @@ object NumberEncryptTransformer : Transformer("NumberEncrypt", Category.Encrypti
         fieldNode: FieldNode?,
         numList: MutableList<Long>?
     ) {
+        val allowance = CodeBudget.allowance(methodNode)
         methodNode.instructions
             .shuffled()
             .forEach {
                 fun encryptFloatingPoint(cst: Number) {
                     // Fall back to classic encryptor if the given fieldNode is null.
-                    if (arrayed && numList != null && fieldNode != null) {
-                        methodNode.instructions.insertBefore(
-                            it,
-                            NumberEncryptorArrayed.encrypt(
-                                cst,
-                                owner,
-                                fieldNode,
-                                numList
-                            )
-                        )
-                    } else methodNode.instructions.insertBefore(it, NumberEncryptorClassic.encrypt(cst))
+                    val encrypted = if (arrayed && numList != null && fieldNode != null) {
+                        NumberEncryptorArrayed.encrypt(cst, owner, fieldNode, numList)
+                    } else NumberEncryptorClassic.encrypt(cst)
+                    if (!allowance.replace(it, encrypted)) return
+                    methodNode.instructions.insertBefore(it, encrypted)
                     methodNode.instructions.remove(it)
                     add()
                 }
 
-                if (methodNode.instructions.size() + 3 < maxInsnSize) {
+                if (methodNode.instructions.size() + 3 < maxInsnSize && allowance.remaining > 0) {
                     when {
                         it is LdcInsnNode -> when (val cst = it.cst) {
                             is Float -> encryptFloatingPoint(cst)
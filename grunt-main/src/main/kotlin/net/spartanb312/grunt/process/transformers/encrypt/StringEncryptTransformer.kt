@@ -1,21 +1,19 @@
 package net.spartanb312.grunt.process.transformers.encrypt
 
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
-import kotlinx.coroutines.runBlocking
 import net.spartanb312.genesis.kotlin.clinit
 import net.spartanb312.genesis.kotlin.extensions.*
 import net.spartanb312.genesis.kotlin.extensions.insn.*
 import net.spartanb312.genesis.kotlin.field
 import net.spartanb312.genesis.kotlin.instructions
 import net.spartanb312.genesis.kotlin.method
-import net.spartanb312.grunt.config.Configs
 import net.spartanb312.grunt.config.setting
-import net.spartanb312.grunt.process.MethodProcessor
+import net.spartanb312.grunt.process.ClassPipeline.processClasses
+import net.spartanb312.grunt.process.ClassProcessor
+import net.spartanb312.grunt.process.CodeBudget
 import net.spartanb312.grunt.process.Transformer
 import net.spartanb312.grunt.process.resource.ResourceCache
 import net.spartanb312.grunt.process.transformers.rename.ReflectionSupportTransformer
-import net.spartanb312.grunt.utils.count
+import net.spartanb312.grunt.utils.Counter
 import net.spartanb312.grunt.utils.extensions.isInterface
 import net.spartanb312.grunt.utils.getRandomString
 import net.spartanb312.grunt.utils.logging.Logger
@@ -28,7 +26,7 @@ import kotlin.random.Random
  * Encrypt strings
  * Last update on 2024/12/28
  */
-object StringEncryptTransformer : Transformer("StringEncrypt", Category.Encryption), MethodProcessor {
+object StringEncryptTransformer : Transformer("StringEncrypt", Category.Encryption), ClassProcessor {
 
     private val arrayed by setting("Arrayed", false)
     private val replaceInvokeDynamics by setting("ReplaceInvokeDynamics", true)
@@ -37,21 +35,24 @@ object StringEncryptTransformer : Transformer("StringEncrypt", Category.Encrypti
     private val String.reflectionExcluded
         get() = ReflectionSupportTransformer.enabled && ReflectionSupportTransformer.strBlacklist.contains(this)
 
-    override fun ResourceCache.transform() {
+    override val reads = setOf(State.CLASS_SET, State.MEMBERS, State.METHOD_BODIES)
+    override val writes = setOf(State.MEMBERS, State.METHOD_BODIES)
+
+    override fun ResourceCache.transform() = processClasses(StringEncryptTransformer)
+
+    override fun ResourceCache.prepare() {
         Logger.info(" - Encrypting strings...")
-        val count = count {
-            runBlocking {
-                nonExcluded.asSequence()
-                    .filter { c ->
-                        c.version > Opcodes.V1_5 && exclusion.none { c.name.startsWith(it) }
-                    }.forEach { classNode ->
-                        fun job() {
-                            transformClass(classNode, null)
-                        }
-                        if (Configs.Settings.parallel) launch(Dispatchers.Default) { job() } else job()
-                    }
-            }
-        }.get()
+    }
+
+    override fun ResourceCache.accepts(classNode: ClassNode): Boolean {
+        return classNode.version > Opcodes.V1_5 && exclusion.none { classNode.name.startsWith(it) }
+    }
+
+    override fun Counter.transformClass(classNode: ClassNode) {
+        transformClass(classNode, null)
+    }
+
+    override fun report(count: Int) {
         Logger.info("    Encrypted $count strings")
     }
 
@@ -140,6 +141,7 @@ object StringEncryptTransformer : Transformer("StringEncrypt", Category.Encrypti
 
             classNode.methods.forEach { methodNode ->
                 if (onlyObfuscate != null && onlyObfuscate != methodNode) return@forEach
+                val allowance = CodeBudget.allowance(methodNode)
                 methodNode.instructions.asSequence()
                     .filter {
                         it is LdcInsnNode && it.cst is String
@@ -149,11 +151,14 @@ object StringEncryptTransformer : Transformer("StringEncrypt", Category.Encrypti
                     .forEach { instruction ->
                         val originalString = (instruction as LdcInsnNode).cst as String
                         val index = stringsToEncrypt[originalString]!!
-                        methodNode.instructions.insert(instruction, instructions {
+                        val replacement = instructions {
                             GETSTATIC(classNode.name, poolField.name, poolField.desc)
                             INT(index)
                             AALOAD
-                        })
+                        }
+                        // Left as a plain ldc when over the size budget
+                        if (!allowance.replace(instruction, replacement)) return@forEach
+                        methodNode.instructions.insert(instruction, replacement)
                         methodNode.instructions.remove(instruction)
                     }
             }
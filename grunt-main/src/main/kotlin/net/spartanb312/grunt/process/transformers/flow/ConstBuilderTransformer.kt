@@ -8,6 +8,7 @@ import net.spartanb312.genesis.kotlin.extensions.insn.*
 import net.spartanb312.genesis.kotlin.instructions
 import net.spartanb312.grunt.annotation.DISABLE_SCRAMBLE
 import net.spartanb312.grunt.config.setting
+import net.spartanb312.grunt.process.CodeBudget
 import net.spartanb312.grunt.process.Transformer
 import net.spartanb312.grunt.process.resource.ResourceCache
 import net.spartanb312.grunt.utils.count
@@ -62,48 +63,27 @@ object ConstBuilderTransformer : Transformer("ConstBuilder", Category.Controlflo
     }
 
     fun ResourceCache.transformSingle(classNode: ClassNode, methodNode: MethodNode) {
+        val allowance = CodeBudget.allowance(methodNode)
         val newInsn = instructions {
             var remains = 16384 - methodNode.instructions.size()
             methodNode.instructions.forEach {
-                if ((0..99).random() < replaceRate && remains > 32) {
-                    if (it.opcode in 0x2..0x8) {
+                if ((0..99).random() < replaceRate && remains > 32 && allowance.remaining > 0) {
+                    val replacement = if (it.opcode in 0x2..0x8) {
                         val value = it.opcode - 0x3
-                        val list = insertSwitch(classNode, methodNode, value)
-                        remains -= list.size()
-                        +list
+                        buildInt(classNode, methodNode, it, allowance, value)
                     } else if (it is IntInsnNode && it.opcode != Opcodes.NEWARRAY) {
                         val value = it.operand
-                        val list = insertSwitch(classNode, methodNode, value)
-                        remains -= list.size()
-                        +list
+                        buildInt(classNode, methodNode, it, allowance, value)
                     } else if (it is LdcInsnNode && it.cst is Int) {
                         val value = it.cst as Int
-                        val list = insertSwitch(classNode, methodNode, value)
-                        remains -= list.size()
-                        +list
+                        buildInt(classNode, methodNode, it, allowance, value)
                     } else if (it is LdcInsnNode && it.cst is Long && splitLong) {
                         val value = it.cst as Long
-                        val head = (value shr 32).toInt()
-                        val tail = (value and 0x000000FFFFFFFFL).toInt()
-                        // Head
-                        val list1 = insertSwitch(classNode, methodNode, head)
-                        remains -= list1.size()
-                        +list1
-                        I2L
-                        LONG(0x000000FFFFFFFFL)
-                        LAND
-                        INT(32)
-                        LSHL
-                        // Tail
-                        val list2 = insertSwitch(classNode, methodNode, tail)
-                        remains -= list2.size()
-                        +list2
-                        I2L
-                        LONG(0x00000000FFFFFFFFL)
-                        LAND
-                        // Combine
-                        LOR
-                        remains -= 9
+                        buildLong(classNode, methodNode, it, allowance, value)
+                    } else null
+                    if (replacement != null) {
+                        remains -= replacement.size()
+                        +replacement
                     } else +it
                 } else +it
             }
@@ -111,15 +91,74 @@ object ConstBuilderTransformer : Transformer("ConstBuilder", Category.Controlflo
         methodNode.instructions = newInsn
     }
 
+    // The size is taken before building, building creates the const fields
+    private fun ResourceCache.buildInt(
+        classNode: ClassNode,
+        methodNode: MethodNode,
+        insn: AbstractInsnNode,
+        allowance: CodeBudget.Allowance,
+        value: Int
+    ): InsnList? {
+        val cases = randomCases()
+        if (!allowance.take(switchSize(cases) - CodeBudget.sizeOf(insn))) return null
+        return insertSwitch(classNode, methodNode, value, cases)
+    }
+
+    private fun ResourceCache.buildLong(
+        classNode: ClassNode,
+        methodNode: MethodNode,
+        insn: AbstractInsnNode,
+        allowance: CodeBudget.Allowance,
+        value: Long
+    ): InsnList? {
+        val head = (value shr 32).toInt()
+        val tail = (value and 0x000000FFFFFFFFL).toInt()
+        val headCases = randomCases()
+        val tailCases = randomCases()
+        val size = switchSize(headCases) + switchSize(tailCases) + LONG_JOIN_SIZE
+        if (!allowance.take(size - CodeBudget.sizeOf(insn))) return null
+        return instructions {
+            // Head
+            +insertSwitch(classNode, methodNode, head, headCases)
+            I2L
+            LONG(0x000000FFFFFFFFL)
+            LAND
+            INT(32)
+            LSHL
+            // Tail
+            +insertSwitch(classNode, methodNode, tail, tailCases)
+            I2L
+            LONG(0x00000000FFFFFFFFL)
+            LAND
+            // Combine
+            LOR
+        }
+    }
+
+    private fun randomCases() = (1..maxOf(maxCases, 1)).random()
+
+    // CodeBudget.sizeOf of what insertSwitch builds, the key xor, a lookupswitch without the default and the cases
+    private fun switchSize(cases: Int) = xorSize(true) + 12 + 8 * (cases - 1) + cases * (xorSize(heavy) + 3)
+
+    // A getstatic per int and the xors
+    private fun xorSize(heavy: Boolean) = if (heavy) 4 * 3 + 3 else 2 * 3 + 1
+
+    // I2L, ldc2_w, LAND, bipush, LSHL, I2L, ldc2_w, LAND, LOR
+    private const val LONG_JOIN_SIZE = 14
 
-    private fun ResourceCache.insertSwitch(classNode: ClassNode, methodNode: MethodNode, value: Int): InsnList =
+    private fun ResourceCache.insertSwitch(
+        classNode: ClassNode,
+        methodNode: MethodNode,
+        value: Int,
+        cases: Int
+    ): InsnList =
         with(classNode) {
             val isInitializer = methodNode.isInitializer
             instructions {
                 val exitLabel = Label()
                 // Prepare cases
                 val seeds = buildList {
-                    repeat((1..maxOf(maxCases, 1)).random()) {
+                    repeat(cases) {
                         add(Random.nextInt())
                     }
                 }.sorted().toMutableList()
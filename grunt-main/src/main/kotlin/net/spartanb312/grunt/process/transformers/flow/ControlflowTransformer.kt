@@ -1,19 +1,19 @@
 package net.spartanb312.grunt.process.transformers.flow
 
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
-import kotlinx.coroutines.runBlocking
+import net.spartanb312.genesis.kotlin.InsnListBuilder
 import net.spartanb312.genesis.kotlin.instructions
 import net.spartanb312.grunt.annotation.DISABLE_CONTROLFLOW
 import net.spartanb312.grunt.config.Configs
 import net.spartanb312.grunt.config.setting
-import net.spartanb312.grunt.process.MethodProcessor
+import net.spartanb312.grunt.process.ClassPipeline.processClasses
+import net.spartanb312.grunt.process.ClassProcessor
+import net.spartanb312.grunt.process.CodeBudget
 import net.spartanb312.grunt.process.Transformer
 import net.spartanb312.grunt.process.hierarchy.Hierarchy
-import net.spartanb312.grunt.process.hierarchy.ReferenceSearch
+import net.spartanb312.grunt.process.resource.HotnessProfile
 import net.spartanb312.grunt.process.resource.ResourceCache
 import net.spartanb312.grunt.process.transformers.flow.process.*
-import net.spartanb312.grunt.utils.count
+import net.spartanb312.grunt.utils.Counter
 import net.spartanb312.grunt.utils.extensions.hasAnnotation
 import net.spartanb312.grunt.utils.extensions.isDummy
 import net.spartanb312.grunt.utils.logging.Logger
@@ -28,7 +28,7 @@ import kotlin.random.Random
  * Obfuscating the controlflow
  * Last update on 24/12/24
  */
-object ControlflowTransformer : Transformer("Controlflow", Category.Controlflow), MethodProcessor {
+object ControlflowTransformer : Transformer("Controlflow", Category.Controlflow), ClassProcessor {
 
     private val intensity by setting("Intensity", 1)  // Range 1..3
     private var beforeEncrypt by setting("ExecuteBeforeEncrypt", false)
@@ -67,32 +67,44 @@ object ControlflowTransformer : Transformer("Controlflow", Category.Controlflow)
             beforeEncrypt = value == 200
         }
 
-    override fun ResourceCache.transform() {
+    private var hierarchy: Hierarchy? = null
+    private var hotMethods: HotnessProfile? = null
+
+    // ArithmeticExpr puts its builders into new classes
+    override val addsClasses get() = arithmeticExpr
+
+    // Junk calls and expression builders are collected from all classes
+    override val preparesFromProgram get() = true
+
+    override fun ResourceCache.transform() = processClasses(ControlflowTransformer)
+
+    override fun ResourceCache.prepare() {
         Logger.info(" - Transforming controlflows...")
         JunkCode.refresh(this)
         ArithmeticExpr.refresh(this)
-        val hierarchy = Hierarchy(this)
-        hierarchy.build(true)
-        val count = count {
-            runBlocking {
-                nonExcluded.asSequence()
-                    .filter {
-                        it.name.notInList(exclusion)
-                                && !it.missingReference(hierarchy)
-                                && !it.hasAnnotation(DISABLE_CONTROLFLOW)
-                    }.forEach { classNode ->
-                        fun job() {
-                            classNode.methods.toList().forEach { methodNode ->
-                                if (!methodNode.hasAnnotation(DISABLE_CONTROLFLOW)) {
-                                    add(processMethodNode(classNode, methodNode, false))
-                                }
-                            }
-                        }
-                        if (Configs.Settings.parallel) launch(Dispatchers.Default) { job() } else job()
-                    }
+        hierarchy = hierarchies.classes()
+        hotMethods = hotness
+        references.refresh(nonExcluded, Configs.Settings.parallel)
+    }
+
+    override fun ResourceCache.accepts(classNode: ClassNode): Boolean {
+        return classNode.name.notInList(exclusion)
+                && !missingReference(classNode, hierarchy!!)
+                && !classNode.hasAnnotation(DISABLE_CONTROLFLOW)
+    }
+
+    override fun Counter.transformClass(classNode: ClassNode) {
+        classNode.methods.toList().forEach { methodNode ->
+            if (!methodNode.hasAnnotation(DISABLE_CONTROLFLOW) && hotMethods?.isHot(methodNode) != true) {
+                add(processMethodNode(classNode, methodNode, false))
             }
         }
-        Logger.info("    Replaced ${count.get()} jumps")
+    }
+
+    override fun report(count: Int) {
+        hierarchy = null
+        hotMethods = null
+        Logger.info("    Replaced $count jumps")
     }
 
     fun transformMethod(owner: ClassNode, method: MethodNode, indyReobf: Boolean) {
@@ -105,14 +117,32 @@ object ControlflowTransformer : Transformer("Controlflow", Category.Controlflow)
 
     private fun processMethodNode(owner: ClassNode, methodNode: MethodNode, indyReobf: Boolean): Int {
         var count = 0
+        val allowance = CodeBudget.allowance(methodNode)
+
+        // Generated code that doesn't fit the size budget is dropped and the instruction kept
+        // Expression builders and locals of generated code are only added once it is kept
+        fun InsnListBuilder.replace(insnNode: AbstractInsnNode, generate: () -> InsnList): Boolean {
+            if (allowance.remaining > 0) {
+                val generated = generate()
+                if (allowance.replace(insnNode, generated)) {
+                    ArithmeticExpr.commit()
+                    +generated
+                    return true
+                }
+                ArithmeticExpr.discard()
+            }
+            +insnNode
+            return false
+        }
+
         repeat(intensity) {
             if (switchProtect) {
                 val newInsn = instructions { // step1: replace switches { switch: m }
                     methodNode.instructions.forEach { insnNode ->
                         if (Random.nextInt(0, 100) <= protectRate) {
                             if (!insnNode.previous.isDummy) when (insnNode) {
-                                is LookupSwitchInsnNode -> +LookUpSwitch.generate(insnNode)
-                                is TableSwitchInsnNode -> +LookUpSwitch.generate(insnNode)
+                                is LookupSwitchInsnNode -> replace(insnNode) { LookUpSwitch.generate(insnNode) }
+                                is TableSwitchInsnNode -> replace(insnNode) { LookUpSwitch.generate(insnNode) }
                                 else -> +insnNode
                             } else +insnNode
                         } else +insnNode
@@ -128,8 +158,7 @@ object ControlflowTransformer : Transformer("Controlflow", Category.Controlflow)
                             && !instruction.previous.isDummy
                             && Random.nextInt(0, 100) <= mutateRate
                         ) {
-                            +MutateJumps.generate(instruction)
-                            count++
+                            if (replace(instruction) { MutateJumps.generate(instruction) }) count++
                         } else +instruction
                     }
                 }
@@ -139,11 +168,10 @@ object ControlflowTransformer : Transformer("Controlflow", Category.Controlflow)
                     methodNode.instructions.forEach { insnNode ->
                         if (Random.nextInt(0, 100) <= extractRate) {
                             if ((insnNode is TableSwitchInsnNode || insnNode is LookupSwitchInsnNode) && !insnNode.previous.isDummy) {
-                                +SwitchExtractor.generate(
-                                    insnNode,
+                                if (replace(insnNode) { SwitchExtractor.generate(insnNode, methodNode.maxLocals) }) {
                                     methodNode.maxLocals++
-                                )
-                                count++
+                                    count++
+                                }
                             } else +insnNode
                         } else +insnNode
                     }
@@ -157,15 +185,17 @@ object ControlflowTransformer : Transformer("Controlflow", Category.Controlflow)
                         if (insnNode is JumpInsnNode && insnNode.opcode == Opcodes.GOTO && !insnNode.previous.isDummy
                             && Random.nextInt(0, 100) <= gotoRate
                         ) {
-                            +ReplaceGoto.generate(
-                                insnNode.label,
-                                owner,
-                                methodNode,
-                                returnType,
-                                Random.nextBoolean(),
-                                indyReobf
-                            )
-                            count++
+                            val replaced = replace(insnNode) {
+                                ReplaceGoto.generate(
+                                    insnNode.label,
+                                    owner,
+                                    methodNode,
+                                    returnType,
+                                    Random.nextBoolean(),
+                                    indyReobf
+                                )
+                            }
+                            if (replaced) count++
                         } else +insnNode
                     }
                 }
@@ -181,16 +211,18 @@ object ControlflowTransformer : Transformer("Controlflow", Category.Controlflow)
                             val replaceCompare = ReplaceIf.ifCompareOpcodes.any { it == insnNode.opcode }
                                     && Random.nextInt(0, 100) <= ifCompareRate
                             if (replaceIf || replaceCompare) {
-                                +ReplaceIf.generate(
-                                    insnNode,
-                                    insnNode.label,
-                                    owner,
-                                    methodNode,
-                                    returnType,
-                                    Random.nextBoolean(),
-                                    indyReobf
-                                )
-                                count++
+                                val replaced = replace(insnNode) {
+                                    ReplaceIf.generate(
+                                        insnNode,
+                                        insnNode.label,
+                                        owner,
+                                        methodNode,
+                                        returnType,
+                                        Random.nextBoolean(),
+                                        indyReobf
+                                    )
+                                }
+                                if (replaced) count++
                             } else +insnNode
                         } else +insnNode
                     }
@@ -205,23 +237,25 @@ object ControlflowTransformer : Transformer("Controlflow", Category.Controlflow)
                         if (insnNode is JumpInsnNode && insnNode.opcode == Opcodes.GOTO && !insnNode.previous.isDummy
                             && Random.nextInt(0, 100) <= switchRate
                         ) {
-                            if (chaosSwitch) +ChaosSwitch.generate(
-                                insnNode.label,
-                                owner,
-                                methodNode,
-                                returnType,
-                                range.random(),
-                                indyReobf
-                            ) else +TableSwitch.generate(
-                                insnNode.label,
-                                owner,
-                                methodNode,
-                                returnType,
-                                range.random(),
-                                Random.nextBoolean(),
-                                indyReobf
-                            )
-                            count++
+                            val replaced = replace(insnNode) {
+                                if (chaosSwitch) ChaosSwitch.generate(
+                                    insnNode.label,
+                                    owner,
+                                    methodNode,
+                                    returnType,
+                                    range.random(),
+                                    indyReobf
+                                ) else TableSwitch.generate(
+                                    insnNode.label,
+                                    owner,
+                                    methodNode,
+                                    returnType,
+                                    range.random(),
+                                    Random.nextBoolean(),
+                                    indyReobf
+                                )
+                            }
+                            if (replaced) count++
                         } else +insnNode
                     }
                 }
@@ -233,8 +267,8 @@ object ControlflowTransformer : Transformer("Controlflow", Category.Controlflow)
         return count
     }
 
-    private fun ClassNode.missingReference(hierarchy: Hierarchy): Boolean {
-        return ReferenceSearch.checkMissing(this, hierarchy).isNotEmpty()
+    private fun ResourceCache.missingReference(classNode: ClassNode, hierarchy: Hierarchy): Boolean {
+        return references.checkMissing(classNode, hierarchy).isNotEmpty()
     }
 
 }
\ No newline at end of file
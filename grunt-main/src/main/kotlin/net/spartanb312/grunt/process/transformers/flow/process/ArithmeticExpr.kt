@@ -18,6 +18,7 @@ import net.spartanb312.grunt.utils.getRandomString
 import org.objectweb.asm.tree.ClassNode
 import org.objectweb.asm.tree.InsnList
 import org.objectweb.asm.tree.InsnNode
+import org.objectweb.asm.tree.MethodNode
 import kotlin.random.Random
 
 /**
@@ -27,10 +28,20 @@ import kotlin.random.Random
 object ArithmeticExpr {
 
     private val cachedOwner = mutableMapOf<String, ClassNode>()
+    private val addedOwners = mutableSetOf<ClassNode>()
     private lateinit var res: ResourceCache
 
+    // Builders of generated code on this thread, added once the code is kept
+    private val pending = ThreadLocal.withInitial { mutableListOf<Pair<ClassNode, MethodNode>>() }
+
+    // Filtered again only when the nonExcluded view got rebuilt
+    private var rangeSource: List<ClassNode>? = null
+    private var range = listOf<ClassNode>()
+
     fun refresh(resourceCache: ResourceCache) {
         cachedOwner.clear()
+        addedOwners.clear()
+        rangeSource = null
         res = resourceCache
     }
 
@@ -38,13 +49,17 @@ object ArithmeticExpr {
         val allowedRange: List<ClassNode>
         val owner: ClassNode
         synchronized(cachedOwner) {
-            allowedRange = res.nonExcluded.filter { !it.access.isRecord && it.isPublic }
+            val nonExcluded = res.nonExcluded
+            if (nonExcluded !== rangeSource) {
+                range = nonExcluded.filter { !it.access.isRecord && it.isPublic }
+                rangeSource = nonExcluded
+            }
+            allowedRange = range
             owner = cachedOwner.getOrPut(caller.name) {
                 val created = clazz(PUBLIC, "${caller.name}\$processor")
                 if (indyReobf && ClassRenameTransformer.enabled) {
                     created.name = ClassRenameTransformer.nextAppendClassName(created)
                 }
-                res.addClass(created)
                 created
             }
         }
@@ -58,11 +73,7 @@ object ArithmeticExpr {
             INSTRUCTIONS { +action }
             MAXS(2, 3)
         }
-        if (ControlflowTransformer.annotationOnBuilder) {
-            NativeCandidateTransformer.appendedMethods.add(dedicateMethod)
-            dedicateMethod.visitAnnotation(NativeCandidateTransformer.annotation, false)
-        }
-        owner.modify { +dedicateMethod }
+        pending.get().add(owner to dedicateMethod)
         return instructions {
             if (ControlflowTransformer.junkParameter) {
                 ACONST_NULL
@@ -72,6 +83,29 @@ object ArithmeticExpr {
         }
     }
 
+    /**
+     * Adds the builders called by the code generated since the last commit or discard
+     */
+    fun commit() {
+        val builders = pending.get()
+        builders.forEach { (owner, dedicateMethod) ->
+            if (ControlflowTransformer.annotationOnBuilder) {
+                NativeCandidateTransformer.appendedMethods.add(dedicateMethod)
+                dedicateMethod.visitAnnotation(NativeCandidateTransformer.annotation, false)
+            }
+            synchronized(cachedOwner) {
+                if (addedOwners.add(owner)) res.addClass(owner)
+            }
+            owner.modify { +dedicateMethod }
+        }
+        builders.clear()
+    }
+
+    /**
+     * Drops the builders of generated code that is not used
+     */
+    fun discard() = pending.get().clear()
+
     val actions = mutableListOf(
         // param: v1, magic
         // post: v3
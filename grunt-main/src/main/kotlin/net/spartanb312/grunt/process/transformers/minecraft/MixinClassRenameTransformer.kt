@@ -38,14 +38,12 @@ object MixinClassRenameTransformer : Transformer("MixinClassRename", Category.Mi
         }
 
         Logger.info("    Generating mappings for mixin classes...")
-        val equalsExclusion = exclusion.filter { !it.endsWith("**") }
-        val startWithExclusion = buildList { exclusion.forEach { if (it.endsWith("**")) add(it.removeSuffix("**")) } }
         val targetMixinPackage = targetMixinPackage.removeSuffix("/") + "/"
         val dictionary = NameGenerator.getByName(dictionary)
         val mappings: MutableMap<String, String> = HashMap()
         val count = count {
             mixinClasses.forEach {
-                if (it.name.notInList(equalsExclusion, false) && it.name.notInList(startWithExclusion)) {
+                if (it.name.notInList(exclusion, false)) {
                     mappings[it.name] = targetMixinPackage + dictionary.nextName()
                     add()
                 }
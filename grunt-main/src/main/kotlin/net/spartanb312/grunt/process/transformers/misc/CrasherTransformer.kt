@@ -23,6 +23,9 @@ object CrasherTransformer : Transformer("Crasher", Category.Miscellaneous) {
             if (random) massiveBlankString else massiveString
         } else this
 
+    override val reads = setOf(State.CLASS_SET, State.MEMBERS)
+    override val writes = setOf(State.MEMBERS)
+
     override fun ResourceCache.transform() {
         Logger.info(" - Adding crashers on classes...")
         val count = count {
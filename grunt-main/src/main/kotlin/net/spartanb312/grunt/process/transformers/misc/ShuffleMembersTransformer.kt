@@ -23,6 +23,9 @@ object ShuffleMembersTransformer : Transformer("ShuffleMembers", Category.Miscel
     private var exceptions by setting("Exceptions", true)
     private val exclusion by setting("Exclusion", listOf())
 
+    override val reads = setOf(State.CLASS_SET, State.MEMBERS)
+    override val writes = setOf(State.MEMBERS)
+
     override fun ResourceCache.transform() {
         Logger.info(" - Shuffling members...")
         val count = count {
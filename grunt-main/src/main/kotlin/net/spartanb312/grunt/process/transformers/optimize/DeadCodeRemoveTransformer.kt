@@ -23,6 +23,9 @@ object DeadCodeRemoveTransformer : Transformer("DeadCodeRemove", Category.Optimi
 
     private val exclusion by setting("Exclusion", listOf())
 
+    override val reads = setOf(State.CLASS_SET, State.MEMBERS, State.METHOD_BODIES)
+    override val writes = setOf(State.METHOD_BODIES)
+
     override fun ResourceCache.transform() {
         Logger.info(" - Removing dead codes...")
         val count = count {
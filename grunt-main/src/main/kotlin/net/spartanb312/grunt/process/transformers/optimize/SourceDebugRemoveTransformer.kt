@@ -27,6 +27,9 @@ object SourceDebugRemoveTransformer : Transformer("SourceDebugRemove", Category.
     )
     private val exclusion by setting("Exclusion", listOf())
 
+    override val reads = setOf(State.CLASS_SET, State.MEMBERS)
+    override val writes = setOf(State.MEMBERS, State.METHOD_BODIES)
+
     override fun ResourceCache.transform() {
         Logger.info(" - Removing/Editing debug information...")
         val count = count {
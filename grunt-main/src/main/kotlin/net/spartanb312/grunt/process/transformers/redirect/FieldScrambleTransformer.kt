@@ -58,11 +58,11 @@ object FieldScrambleTransformer : Transformer("FieldScramble", Category.Redirect
                     .forEach { classNode ->
                         fun job() {
                             classNode.methods.toList().asSequence()
-                                .filter { !it.isInitializer }
+                                .filter { !it.isInitializer && !hotness.isHot(it) }
                                 .forEach { methodNode ->
                                     methodNode.instructions.toList().forEach {
                                         if (it is FieldInsnNode && it.name.notInList(excludedFieldName) && (0..99).random() < rate) {
-                                            val callingOwner = synchronized(this@process) { getClassNode(it.owner) }
+                                            val callingOwner = getClassNode(it.owner)
                                             val callingField = callingOwner?.fields?.find { field ->
                                                 field.name == it.name && field.desc == it.desc
                                             }
@@ -110,7 +110,7 @@ object FieldScrambleTransformer : Transformer("FieldScramble", Category.Redirect
                                                 if (genMethod != null) {
                                                     if (shouldOuter) {
                                                         genMethod.access = Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC
-                                                        val clazz = synchronized(this@process) {
+                                                        val clazz = synchronized(newClasses) {
                                                             newClasses.getOrPut(classNode) {
                                                                 ClassNode().apply {
                                                                     visit(
@@ -14,7 +14,9 @@ import net.spartanb312.grunt.annotation.DISABLE_INVOKEDYNAMIC
 import net.spartanb312.grunt.config.Configs
 import net.spartanb312.grunt.config.Configs.isExcluded
 import net.spartanb312.grunt.config.setting
+import net.spartanb312.grunt.process.CodeBudget
 import net.spartanb312.grunt.process.Transformer
+import net.spartanb312.grunt.process.resource.HotnessProfile
 import net.spartanb312.grunt.process.resource.ResourceCache
 import net.spartanb312.grunt.process.transformers.flow.ControlflowTransformer
 import net.spartanb312.grunt.process.transformers.flow.process.ArithmeticExpr
@@ -174,7 +176,7 @@ object InvokeDynamicTransformer : Transformer("InvokeDynamic", Category.Redirect
                         val bsmName2 = bsmName1.substring(1, bsmName1.length - 1)
                         val decryptName = if (massiveRandom) massiveBlankString else getRandomString(16)
                         val decryptKey = Random.nextInt()
-                        if (shouldApply(classNode, bsmName1, bsmName2, decryptKey, metadata)) {
+                        if (shouldApply(classNode, bsmName1, bsmName2, decryptKey, metadata, hotness)) {
                             val decrypt = createDecryptMethod(decryptName, decryptKey)
                             val decrypt2 = if (heavy) createHeavyDecryptMethod(decryptName) else null
                             val bsm = createBootstrap(classNode.name, bsmName1, decryptName)
@@ -240,13 +242,15 @@ object InvokeDynamicTransformer : Transformer("InvokeDynamic", Category.Redirect
         bsm1: String,
         bsm2: String,
         decryptKey: Int,
-        metadataMap: Map<ClassNode, MetaData>
+        metadataMap: Map<ClassNode, MetaData>,
+        hotness: HotnessProfile
     ): Boolean {
         var shouldApply = false
         classNode.methods
             .filter { !it.isAbstract && !it.isNative }
             .forEach { methodNode ->
-                if (!methodNode.hasAnnotation(DISABLE_INVOKEDYNAMIC)) {
+                if (!methodNode.hasAnnotation(DISABLE_INVOKEDYNAMIC) && !hotness.isHot(methodNode)) {
+                    val allowance = CodeBudget.allowance(methodNode)
                     methodNode.instructions.filter {
                         it is MethodInsnNode && it.opcode != Opcodes.INVOKESPECIAL
                     }.forEach { insnNode ->
@@ -303,6 +307,7 @@ object InvokeDynamicTransformer : Transformer("InvokeDynamic", Category.Redirect
                                 encrypt(insnNode.desc, decryptKey),
                                 if (insnNode.opcode == Opcodes.INVOKESTATIC) 0 else 1
                             )
+                            if (!allowance.replace(insnNode, invokeDynamicInsnNode)) return@forEach
                             methodNode.instructions.insertBefore(insnNode, invokeDynamicInsnNode)
                             methodNode.instructions.remove(insnNode)
                             shouldApply = true
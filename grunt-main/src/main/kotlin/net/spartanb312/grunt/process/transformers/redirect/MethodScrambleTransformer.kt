@@ -47,7 +47,7 @@ object MethodScrambleTransformer : Transformer("MethodScramble", Category.Redire
                     .filter { it.name.notInList(excludedClasses) }
                     .forEach { classNode ->
                         fun job() {
-                            classNode.methods.toList().forEach { methodNode ->
+                            classNode.methods.filter { !hotness.isHot(it) }.forEach { methodNode ->
                                 methodNode.instructions.toList().forEach {
                                     if (it is MethodInsnNode && it.name.notInList(excludedMethodName) && (0..99).random() < rate) {
                                         val pair = it.getCallingMethodNodeAndOwner(
@@ -59,6 +59,7 @@ object MethodScrambleTransformer : Transformer("MethodScramble", Category.Redire
                                             val callingMethod = pair.second
                                             val skipOwner = callingOwner.hasAnnotation(DISABLE_SCRAMBLE)
                                             val skipMethod = callingMethod.hasAnnotation(DISABLE_SCRAMBLE)
+                                                    || hotness.isHot(callingMethod)
                                             if (nonExcluded.contains(callingOwner) && !skipOwner && !skipMethod) {
                                                 var shouldOuter = generateOuterClass
                                                 // Set accesses
@@ -84,7 +85,7 @@ object MethodScrambleTransformer : Transformer("MethodScramble", Category.Redire
                                                         NativeCandidateTransformer.appendedMethods.add(newMethod)
                                                     }
                                                     if (shouldOuter) {
-                                                        val newOwner = synchronized(this@transform) {
+                                                        val newOwner = synchronized(newClasses) {
                                                             newClasses.getOrPut(classNode) {
                                                                 ClassNode().apply {
                                                                     visit(
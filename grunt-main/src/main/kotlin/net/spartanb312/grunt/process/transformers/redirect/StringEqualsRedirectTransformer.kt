@@ -34,7 +34,7 @@ object StringEqualsRedirectTransformer : Transformer("RedirectStringEquals", Cat
                     .filter { it.name.notInList(exclusion) }
                     .forEach { classNode ->
                         fun job() {
-                            classNode.methods.forEach { methodNode ->
+                            classNode.methods.filter { !hotness.isHot(it) }.forEach { methodNode ->
                                 for (insnNode in methodNode.instructions.toArray()) {
                                     if (insnNode is MethodInsnNode) {
                                         if (insnNode.match(
@@ -47,15 +47,13 @@ object ClassRenameTransformer : Transformer("ClassRename", Category.Renaming) {
     override fun ResourceCache.transform() {
         Logger.info(" - Renaming classes...")
         Logger.info("    Generating mappings for classes...")
-        val equalsExclusion = exclusion.filter { !it.endsWith("**") }
-        val startWithExclusion = buildList { exclusion.forEach { if (it.endsWith("**")) add(it.removeSuffix("**")) } }
         val nameGenerator = NameGenerator.getByName(dictionary)
         lastDict = nameGenerator
         val mappings = mutableMapOf<String, String>()
         val count = count {
             val classes = if (shuffled) nonExcluded.shuffled() else nonExcluded
             classes.forEach {
-                if (it.name.notInList(equalsExclusion, false) && it.name.notInList(startWithExclusion)) {
+                if (it.name.notInList(exclusion, false)) {
                     mappings[it.name] = parent + it.malNamePrefix + prefix + nameGenerator.nextName() + suffix
                     add()
                 }
@@ -15,7 +15,6 @@ import net.spartanb312.grunt.utils.nextBadKeyword
 import net.spartanb312.grunt.utils.notInList
 import org.objectweb.asm.tree.ClassNode
 import org.objectweb.asm.tree.FieldNode
-import java.util.*
 
 /**
  * Renaming fields
@@ -46,6 +45,7 @@ object FieldRenameTransformer : Transformer("FieldRename", Category.Renaming) {
         Logger.info("    Generating mappings for fields...")
 
         val dictionary = NameGenerator.getByName(dictionary)
+        val hierarchy = hierarchies.classes()
         val mappings = HashMap<String, String>()
         val fields: MutableList<Pair<FieldNode, ClassNode>> = ArrayList()
         nonExcluded.forEach { fields.addAll(it.fields.map { field -> field to it }) }
@@ -58,15 +58,12 @@ object FieldRenameTransformer : Transformer("FieldRename", Category.Renaming) {
                     if (fieldNode.reflectionExcluded) continue
                     fun job() {
                         val name = malPrefix + dictionary.nextName() + suffix
-                        val stack: Stack<ClassNode> = Stack()
-                        stack.add(owner)
-                        while (stack.size > 0) {
-                            val classNode = stack.pop()
-                            val key = classNode.name + "." + fieldNode.name
+                        val subClasses = hierarchy.getClassInfo(owner).children
+                            .filter { !it.isBroken && it.name in classes }
+                            .map { it.name }
+                        (listOf(owner.name) + subClasses).forEach { className ->
+                            val key = className + "." + fieldNode.name
                             if (key.notInList(exclusion)) synchronized(mappings) { mappings[key] = name }
-                            classes.values.forEach {
-                                if (it.superName == classNode.name || it.interfaces.contains(classNode.name)) stack.add(it)
-                            }
                         }
                         add()
                     }
@@ -1,11 +1,12 @@
 package net.spartanb312.grunt.process.transformers.rename
 
 import net.spartanb312.grunt.config.setting
-import net.spartanb312.grunt.process.MethodProcessor
+import net.spartanb312.grunt.process.ClassPipeline.processClasses
+import net.spartanb312.grunt.process.ClassProcessor
 import net.spartanb312.grunt.process.Transformer
 import net.spartanb312.grunt.process.resource.NameGenerator
 import net.spartanb312.grunt.process.resource.ResourceCache
-import net.spartanb312.grunt.utils.count
+import net.spartanb312.grunt.utils.Counter
 import net.spartanb312.grunt.utils.logging.Logger
 import net.spartanb312.grunt.utils.notInList
 import org.objectweb.asm.tree.ClassNode
@@ -15,7 +16,7 @@ import org.objectweb.asm.tree.MethodNode
  * Rename local variables
  * Last update on 2024/10/02
  */
-object LocalVariableRenameTransformer : Transformer("LocalVariableRename", Category.Renaming), MethodProcessor {
+object LocalVariableRenameTransformer : Transformer("LocalVariableRename", Category.Renaming), ClassProcessor {
 
     private val dictionary by setting("Dictionary", "Alphabet")
     private val thisRef by setting("ThisReference", false)
@@ -23,18 +24,27 @@ object LocalVariableRenameTransformer : Transformer("LocalVariableRename", Categ
     private val deleteParameters by setting("DeleteParameters", false)
     private val exclusion by setting("Exclusion", listOf())
 
-    override fun ResourceCache.transform() {
+    override val reads = setOf(State.CLASS_SET, State.MEMBERS, State.METHOD_BODIES)
+    override val writes = setOf(State.METHOD_BODIES)
+
+    override fun ResourceCache.transform() = processClasses(LocalVariableRenameTransformer)
+
+    override fun ResourceCache.prepare() {
         Logger.info(" - Transforming local variables...")
-        val count = count {
-            nonExcluded.asSequence()
-                .filter { it.name.notInList(exclusion) }
-                .forEach { classNode ->
-                    for (methodNode in classNode.methods) {
-                        transformMethod(classNode, methodNode)
-                        add(methodNode.localVariables?.size ?: 0)
-                    }
-                }
-        }.get()
+    }
+
+    override fun ResourceCache.accepts(classNode: ClassNode): Boolean {
+        return classNode.name.notInList(exclusion)
+    }
+
+    override fun Counter.transformClass(classNode: ClassNode) {
+        for (methodNode in classNode.methods) {
+            transformMethod(classNode, methodNode)
+            add(methodNode.localVariables?.size ?: 0)
+        }
+    }
+
+    override fun report(count: Int) {
         Logger.info("    Transformed $count local variables")
     }
 
@@ -48,9 +48,9 @@ object MethodRenameTransformer : Transformer("MethodRename", Category.Renaming)
         Logger.info(" - Renaming methods...")
 
         Logger.info("    Building hierarchy graph...")
-        val hierarchy = Hierarchy(this)
+        val hierarchy: Hierarchy
         val buildTime = measureTimeMillis {
-            hierarchy.build()
+            hierarchy = hierarchies.classes()
         }
         val indyBlacklist = buildIndyBlacklist()
         Logger.info("    Took $buildTime ms to build ${hierarchy.size} hierarchies")
@@ -165,7 +165,7 @@ object MethodRenameTransformer : Transformer("MethodRename", Category.Renaming)
 
     private fun ResourceCache.buildIndyBlacklist(): List<String> {
         return buildSet {
-            allClasses.forEach { classNode ->
+            allClassesWithCode.forEach { classNode ->
                 classNode.methods.forEach { methodNode ->
                     methodNode.instructions.forEach { insnNode ->
                         if (insnNode is InvokeDynamicInsnNode) {
@@ -101,7 +101,7 @@ object ReflectionSupportTransformer : Transformer("ReflectionSupport", Category.
         fieldBlacklist.clear()
         strBlacklist.clear()
         val count = count {
-            allClasses.forEach { classNode ->
+            allClassesWithCode.forEach { classNode ->
                 classNode.methods.forEach { methodNode ->
                     methodNode.instructions.forEach { insnNode ->
                         // Method and field
@@ -3,7 +3,7 @@ package net.spartanb312.grunt.process.transformers.rename.kr
 import net.spartanb312.grunt.config.Configs.isExcluded
 import net.spartanb312.grunt.config.setting
 import net.spartanb312.grunt.process.Transformer
-import net.spartanb312.grunt.process.hierarchy.krypton.Hierarchy
+import net.spartanb312.grunt.process.hierarchy.HierarchyService
 import net.spartanb312.grunt.process.hierarchy.krypton.info.ClassInfo
 import net.spartanb312.grunt.process.hierarchy.krypton.info.FieldInfo
 import net.spartanb312.grunt.process.resource.NameGenerator
@@ -52,9 +52,7 @@ object FieldRenameTransformerKr : Transformer("FieldRenameKr", Category.Renaming
 
         // Build hierarchy
         Logger.info("    Building field hierarchies...")
-        val hierarchy = Hierarchy(this)
-        hierarchy.buildClass()
-        hierarchy.buildField()
+        val hierarchy = hierarchies.krypton(HierarchyService.Detail.FIELDS)
 
         // Generate names
         Logger.info("    Generating mappings for fields...")
@@ -2,6 +2,7 @@ package net.spartanb312.grunt.process.transformers.rename.kr
 
 import net.spartanb312.grunt.config.setting
 import net.spartanb312.grunt.process.Transformer
+import net.spartanb312.grunt.process.hierarchy.HierarchyService
 import net.spartanb312.grunt.process.hierarchy.krypton.HeavyHierarchy
 import net.spartanb312.grunt.process.hierarchy.krypton.info.ClassInfo
 import net.spartanb312.grunt.process.hierarchy.krypton.info.MethodInfo
@@ -60,10 +61,9 @@ object MethodRenameTransformerKr : Transformer("MethodRenameKr", Category.Renami
 
     private fun ResourceCache.fastRename() {
         Logger.info("    Building method hierarchies...")
-        val hierarchy = HeavyHierarchy(this)
+        val hierarchy: HeavyHierarchy
         val time = measureTimeMillis {
-            hierarchy.buildClass()
-            hierarchy.buildMethodFast()
+            hierarchy = hierarchies.krypton(HierarchyService.Detail.METHODS)
         }
         Logger.info("    Took $time ms to build hierarchy")
 
@@ -149,7 +149,7 @@ object MethodRenameTransformerKr : Transformer("MethodRenameKr", Category.Renami
                                     }
 
                                     val childKey = "${child.classNode.name}.${methodNode.name}${methodNode.desc}"
-                                    val childMethodInfo = child.methods.find { it.full == childKey }
+                                    val childMethodInfo = child.methodTable[methodInfo.code]
                                     infoMappings[childMethodInfo ?: MethodInfo(
                                         child, MethodNode(
                                             Opcodes.ACC_PUBLIC,
@@ -191,9 +191,7 @@ object MethodRenameTransformerKr : Transformer("MethodRenameKr", Category.Renami
 
     private fun ResourceCache.fullRename() {
         Logger.info("    Building method hierarchies...")
-        val hierarchy = HeavyHierarchy(this)
-        hierarchy.buildClass()
-        hierarchy.buildMethod()
+        val hierarchy = hierarchies.krypton(HierarchyService.Detail.LINKED_METHODS)
 
         // Generate names and apply to children
         Logger.info("    Generating mappings for methods...")
@@ -0,0 +1,147 @@
+package net.spartanb312.grunt.utils
+
+/**
+ * Compiled name patterns
+ * Literal patterns live in a prefix trie (and a reversed one for suffix checks),
+ * so a lookup costs the length of the name instead of the number of patterns.
+ * With globs on, patterns with wildcards are globs: "**" matches anything, "*" anything but '/'.
+ * They are hung on the trie node of their literal head (tail for suffix checks) and only tried when it matches.
+ * With globs off, patterns are literal as they always were, except exact lookups still take
+ * a trailing "**" as a prefix like class rename exclusions did.
+ */
+class NameMatcher(patterns: Collection<String>, globs: Boolean) {
+
+    private class Node {
+        var keys = CharArray(0)
+        var children = arrayOfNulls<Node>(0)
+        var terminal = false
+        var globs: MutableList<Regex>? = null
+        var prefixGlobs: MutableList<Regex>? = null
+        var suffixGlobs: MutableList<Regex>? = null
+
+        fun child(char: Char): Node? {
+            val index = keys.binarySearch(char)
+            return if (index >= 0) children[index] else null
+        }
+
+        fun getOrCreate(char: Char): Node {
+            val index = keys.binarySearch(char)
+            if (index >= 0) return children[index]!!
+            val insert = -index - 1
+            val node = Node()
+            keys = CharArray(keys.size + 1).also {
+                keys.copyInto(it, 0, 0, insert)
+                it[insert] = char
+                keys.copyInto(it, insert + 1, insert)
+            }
+            children = arrayOfNulls<Node>(children.size + 1).also {
+                children.copyInto(it, 0, 0, insert)
+                it[insert] = node
+                children.copyInto(it, insert + 1, insert)
+            }
+            return node
+        }
+    }
+
+    private val prefixes = Node()
+    private val suffixes = Node()
+    private val exact = HashSet<String>()
+    private val exactPrefixes = mutableListOf<String>()
+
+    init {
+        patterns.forEach { pattern ->
+            val wildcard = if (globs) pattern.indexOf('*') else -1
+            if (wildcard == -1) {
+                exact.add(pattern)
+                if (!globs && pattern.endsWith("**")) exactPrefixes.add(pattern.removeSuffix("**"))
+                var node = prefixes
+                pattern.forEach { node = node.getOrCreate(it) }
+                node.terminal = true
+                node = suffixes
+                for (index in pattern.indices.reversed()) node = node.getOrCreate(pattern[index])
+                node.terminal = true
+            } else {
+                var node = prefixes
+                for (index in 0 until wildcard) node = node.getOrCreate(pattern[index])
+                (node.globs ?: mutableListOf<Regex>().also { node.globs = it }).add(glob(pattern, false))
+                (node.prefixGlobs ?: mutableListOf<Regex>().also { node.prefixGlobs = it }).add(glob(pattern, true))
+                node = suffixes
+                for (index in pattern.length - 1 downTo pattern.lastIndexOf('*') + 1) {
+                    node = node.getOrCreate(pattern[index])
+                }
+                (node.suffixGlobs ?: mutableListOf<Regex>().also { node.suffixGlobs = it }).add(suffixGlob(pattern))
+            }
+        }
+    }
+
+    /**
+     * Same as any { startsWith(it) } or any { this == it } for literal patterns
+     */
+    fun matches(name: String, startWith: Boolean = true): Boolean {
+        if (!startWith && (name in exact || exactPrefixes.any { name.startsWith(it) })) return true
+        var node: Node? = prefixes
+        var index = 0
+        while (node != null) {
+            if (startWith && node.terminal) return true
+            val globs = if (startWith) node.prefixGlobs else node.globs
+            if (globs != null && globs.any { it.matches(name) }) return true
+            if (index == name.length) break
+            node = node.child(name[index++])
+        }
+        return false
+    }
+
+    /**
+     * Same as any { endsWith(it) } for literal patterns, globs match the end of the name
+     */
+    fun matchesSuffix(name: String): Boolean {
+        var node: Node? = suffixes
+        var index = name.length
+        while (node != null) {
+            if (node.terminal) return true
+            val globs = node.suffixGlobs
+            if (globs != null && globs.any { it.matches(name) }) return true
+            if (index == 0) break
+            node = node.child(name[--index])
+        }
+        return false
+    }
+
+    private fun suffixGlob(pattern: String) = Regex(".*" + glob(pattern, false).pattern, RegexOption.DOT_MATCHES_ALL)
+
+    private fun glob(pattern: String, prefix: Boolean): Regex {
+        val regex = StringBuilder()
+        var index = 0
+        while (index < pattern.length) {
+            val char = pattern[index]
+            if (char == '*') {
+                if (index + 1 < pattern.length && pattern[index + 1] == '*') {
+                    regex.append(".*")
+                    index++
+                } else regex.append("[^/]*")
+            } else regex.append(Regex.escape(char.toString()))
+            index++
+        }
+        if (prefix) regex.append(".*")
+        return Regex(regex.toString(), RegexOption.DOT_MATCHES_ALL)
+    }
+
+}
+
+/**
+ * List of patterns carrying its compiled matcher, used by list settings
+ */
+class PatternList(private val list: List<String>) : List<String> by list {
+
+    private val literalMatcher by lazy { NameMatcher(list, false) }
+    private val globMatcher by lazy { NameMatcher(list, true) }
+
+    fun matcher(globs: Boolean) = if (globs) globMatcher else literalMatcher
+
+    override fun equals(other: Any?): Boolean = other === this || list == other
+
+    override fun hashCode(): Int = list.hashCode()
+
+    override fun toString(): String = list.toString()
+
+}
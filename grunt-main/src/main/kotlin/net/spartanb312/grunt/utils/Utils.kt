@@ -1,12 +1,11 @@
 package net.spartanb312.grunt.utils
 
+import net.spartanb312.grunt.config.Configs
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Type
 import org.objectweb.asm.tree.ClassNode
 import org.objectweb.asm.tree.MethodNode
 import java.io.FileOutputStream
-import java.util.zip.CRC32
-import java.util.zip.ZipOutputStream
 import kotlin.random.Random
 
 val blanks = listOf(
@@ -26,17 +25,6 @@ private val BLANK_STRINGS = arrayOf(
 val massiveString = buildString { repeat(Short.MAX_VALUE.toInt() - 1) { append(" ") } }
 val massiveBlankString: String get() = BLANK_STRINGS.random()
 
-fun ZipOutputStream.corruptCRC32() {
-    val field = ZipOutputStream::class.java.getDeclaredField("crc")
-    field.isAccessible = true
-    field[this] = object : CRC32() {
-        override fun update(bytes: ByteArray, i: Int, length: Int) {}
-        override fun getValue(): Long {
-            return Random.nextInt(0, Int.MAX_VALUE).toLong()
-        }
-    }
-}
-
 fun corruptJarHeader(outputStream: FileOutputStream) {
     // Write default jar header to stream.
     outputStream.write(0x50)
@@ -56,9 +44,15 @@ fun String.notInList(list: Collection<String>, startWith: Boolean = true): Boole
     !inList(list, startWith)
 
 fun String.inList(list: Collection<String>, startWith: Boolean = true): Boolean {
+    if (list is PatternList) return list.matcher(Configs.Settings.globPatterns).matches(this, startWith)
     return list.any { if (startWith) this.startsWith(it) else this == it }
 }
 
+fun String.endsWithAny(list: Collection<String>): Boolean {
+    if (list is PatternList) return list.matcher(Configs.Settings.globPatterns).matchesSuffix(this)
+    return list.any { this.endsWith(it) }
+}
+
 inline fun <T> Sequence<T>.forEachThis(action: T.() -> Unit): Unit {
     for (element in this) action(element)
 }
@@ -55,7 +55,7 @@ fun MethodInsnNode.getCallingMethodNodeAndOwner(
     parallel: Boolean
 ): Pair<ClassNode, MethodNode>? {
     if (parallel) {
-        val ownerNode = synchronized(resourceCache) { resourceCache.getClassNode(owner) ?: return null }
+        val ownerNode = resourceCache.getClassNode(owner) ?: return null
         val methodNode = ownerNode.methods.toList().find { it.name == name && it.desc == desc } ?: return null
         return ownerNode to methodNode
     } else {